@@ -0,0 +1,242 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package com.slide.hudson.plugins;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+
+/**
+ * <p>
+ * Bundles files into a single zip, tar or tar.gz archive which is streamed
+ * straight to the share, without a temporary file.
+ * </p>
+ */
+public class ArchiveWriter {
+	/** The supported archive formats. */
+	public static final String ZIP = "zip";
+	public static final String TAR = "tar";
+	public static final String TAR_GZ = "tar.gz";
+
+	private final String format;
+	private final int level;
+
+	/**
+	 * @param format
+	 *            one of {@link #ZIP}, {@link #TAR} or {@link #TAR_GZ}
+	 * @param level
+	 *            the compression level from 1 (fastest) to 9 (smallest), any
+	 *            other value selects the default level
+	 */
+	public ArchiveWriter(String format, int level) {
+		this.format = format;
+		this.level = level >= 1 && level <= 9 ? level
+				: Deflater.DEFAULT_COMPRESSION;
+	}
+
+	/**
+	 * Writes the archive.
+	 * 
+	 * @param out
+	 *            the stream to write the archive to, closed afterwards
+	 * @param sources
+	 *            the files to add, their length must be known for tar
+	 *            archives
+	 * @param names
+	 *            the path of each file inside the archive
+	 * @return the number of files added
+	 */
+	public int write(OutputStream out, List<UploadSource> sources,
+			List<String> names) throws IOException, InterruptedException {
+		if (ZIP.equals(format)) {
+			ZipOutputStream zip = new ZipOutputStream(out);
+			zip.setLevel(level);
+			try {
+				for (int i = 0; i < sources.size(); i++) {
+					ZipEntry entry = new ZipEntry(names.get(i));
+					if (sources.get(i).getLastModified() > 0) {
+						entry.setTime(sources.get(i).getLastModified());
+					}
+					zip.putNextEntry(entry);
+					copy(sources.get(i), zip);
+					zip.closeEntry();
+				}
+			} finally {
+				zip.close();
+			}
+		} else if (TAR.equals(format) || TAR_GZ.equals(format)) {
+			if (TAR_GZ.equals(format)) {
+				out = new GZIPOutputStream(out, 65536) {
+					{
+						def.setLevel(level);
+					}
+				};
+			}
+			TarOutputStream tar = new TarOutputStream(out);
+			tar.setLongFileMode(TarOutputStream.LONGFILE_GNU);
+			try {
+				for (int i = 0; i < sources.size(); i++) {
+					TarEntry entry = new TarEntry(names.get(i));
+					long length = sources.get(i).getLength();
+					entry.setSize(length);
+					entry.setModTime(sources.get(i).getLastModified());
+					tar.putNextEntry(entry);
+					copy(sources.get(i), tar, length, names.get(i));
+					tar.closeEntry();
+				}
+			} finally {
+				tar.close();
+			}
+		} else {
+			out.close();
+			throw new IOException("Unsupported archive format " + format);
+		}
+		return sources.size();
+	}
+
+	/**
+	 * Copies exactly the number of bytes given in a tar header. A file which
+	 * grew since it was planned is cut at the planned length; one which
+	 * shrank can't be archived anymore.
+	 */
+	private static void copy(UploadSource source, OutputStream out,
+			long length, String name) throws IOException,
+			InterruptedException {
+		InputStream in = source.open(0);
+		try {
+			byte[] data = BufferPool.acquire(65536);
+			try {
+				long remaining = length;
+				int read;
+				while (remaining > 0
+						&& (read = in.read(data, 0, (int) Math.min(
+								data.length, remaining))) > 0) {
+					out.write(data, 0, read);
+					remaining -= read;
+				}
+				if (remaining > 0) {
+					throw new IOException(name + " shrank from " + length
+							+ " to " + (length - remaining)
+							+ " bytes while it was archived");
+				}
+			} finally {
+				BufferPool.release(data);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void copy(UploadSource source, OutputStream out)
+			throws IOException, InterruptedException {
+		InputStream in = source.open(0);
+		try {
+			byte[] data = BufferPool.acquire(65536);
+			try {
+				int read;
+				while ((read = in.read(data)) > 0) {
+					out.write(data, 0, read);
+				}
+			} finally {
+				BufferPool.release(data);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes an archive of files on the node they live on directly to the
+	 * share.
+	 */
+	public static final class NodeArchiver implements FileCallable<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		private final FanOut fanOut;
+		private final List<CIFSShare> shares;
+		private final String destDir;
+		private final String archiveName;
+		private final String format;
+		private final int level;
+		private final List<String> paths;
+		private final List<String> names;
+		private final BandwidthLimiter.Tokens tokens;
+
+		/**
+		 * Creates an archiver writing the same archive to one or more
+		 * shares.
+		 * 
+		 * @param fanOut
+		 *            how the archive is written to the shares, may be null
+		 *            for a single share
+		 * @param paths
+		 *            the absolute paths of the files on the node
+		 * @param names
+		 *            the path of each file inside the archive
+		 * @param tokens
+		 *            the master's bandwidth limits for the shares, see
+		 *            {@link BandwidthLimiter#export}
+		 */
+		public NodeArchiver(FanOut fanOut, List<CIFSShare> shares,
+				String destDir, String archiveName, String format, int level,
+				List<String> paths, List<String> names,
+				BandwidthLimiter.Tokens tokens) {
+			this.fanOut = fanOut;
+			this.shares = new ArrayList<CIFSShare>(shares);
+			this.destDir = destDir;
+			this.archiveName = archiveName;
+			this.format = format;
+			this.level = level;
+			this.paths = new ArrayList<String>(paths);
+			this.names = new ArrayList<String>(names);
+			this.tokens = tokens;
+		}
+
+		public Integer invoke(File f, VirtualChannel channel)
+				throws IOException, InterruptedException {
+			BandwidthLimiter.connect(tokens, shares);
+			List<UploadSource> sources = new ArrayList<UploadSource>(paths
+					.size());
+			for (String path : paths) {
+				sources.add(UploadSource.of(new File(path)));
+			}
+			OutputStream out = shares.size() == 1 ? shares.get(0)
+					.create(destDir, archiveName)
+					: fanOut.open(shares, destDir, archiveName);
+			return new ArchiveWriter(format, level).write(out, sources, names);
+		}
+	}
+}
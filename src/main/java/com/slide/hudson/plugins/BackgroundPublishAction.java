@@ -0,0 +1,132 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * <p>
+ * Shows the state of a publish running in the background after the build,
+ * see {@link BackgroundPublisher}, and its log.
+ * </p>
+ */
+public class BackgroundPublishAction implements Action {
+	/**
+	 * The states of a background publish.
+	 */
+	public enum Status {
+		QUEUED("Waiting to publish"), RUNNING("Publishing"), DONE(
+				"Published"), FAILED("Publishing failed"), INTERRUPTED(
+				"Publishing was interrupted by a restart");
+
+		private final String description;
+
+		private Status(String description) {
+			this.description = description;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+	}
+
+	private Status status = Status.QUEUED;
+	private String message;
+
+	/** Whether the publish belongs to this run of Hudson. */
+	private transient boolean active = true;
+
+	public String getIconFileName() {
+		return "clipboard.gif";
+	}
+
+	public String getDisplayName() {
+		return "CIFS Publish Log";
+	}
+
+	public String getUrlName() {
+		return "cifsPublishLog";
+	}
+
+	/**
+	 * @return the state of the publish
+	 */
+	public synchronized Status getStatus() {
+		if (!active && (status == Status.QUEUED || status == Status.RUNNING)) {
+			// the queue doesn't survive a restart
+			return Status.INTERRUPTED;
+		}
+		return status;
+	}
+
+	/**
+	 * @return why the publish failed, or null
+	 */
+	public synchronized String getMessage() {
+		return message;
+	}
+
+	synchronized void started() {
+		status = Status.RUNNING;
+	}
+
+	synchronized void finished(Throwable failure) {
+		status = failure == null ? Status.DONE : Status.FAILED;
+		message = failure == null ? null : failure.toString();
+	}
+
+	/**
+	 * Sends the log of the publish.
+	 */
+	public void doIndex(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
+		AbstractBuild<?, ?> build = req.findAncestorObject(AbstractBuild.class);
+		rsp.setContentType("text/plain;charset=UTF-8");
+		OutputStream out = rsp.getOutputStream();
+		File log = new File(build.getRootDir(), BackgroundPublisher.LOG_NAME);
+		if (!log.exists()) {
+			return;
+		}
+		InputStream in = new FileInputStream(log);
+		try {
+			byte[] data = new byte[8192];
+			int read;
+			while ((read = in.read(data)) > 0) {
+				out.write(data, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * Publishes files after the build has finished, so a long upload doesn't
+ * keep an executor busy.
+ * </p>
+ * <p>
+ * The build copies the files to publish into a snapshot next to the
+ * workspace, so later builds can change the workspace without affecting the
+ * upload, and queues the publish. Snapshots left behind by publishes which
+ * did not finish because Hudson was shut down are deleted when Hudson
+ * starts, or for workspaces which can't be reached then, when the next
+ * publish of the workspace is queued. A few background threads on the master
+ * work off the queue. The state of each publish is shown by a
+ * {@link BackgroundPublishAction} on its build, and its output goes to a log
+ * file of the build instead of the build log.
+ * </p>
+ */
+public class BackgroundPublisher {
+	/** The name of the publish log in the build directory. */
+	static final String LOG_NAME = "cifs-publish.log";
+
+	/** The number of publishes running in the background at once. */
+	private static final int THREADS = 4;
+
+	private static final ExecutorService QUEUE = Executors.newFixedThreadPool(
+			THREADS, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "CIFS background publisher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/** The snapshots of the publishes queued or running in this JVM. */
+	private static final Set<String> ACTIVE = new HashSet<String>();
+
+	private BackgroundPublisher() {
+	}
+
+	/**
+	 * Snapshots the files of the publisher's entries and queues their
+	 * upload.
+	 * 
+	 * @param listener
+	 *            the build log
+	 */
+	public static void queue(final CIFSPublisher publisher,
+			final AbstractBuild<?, ?> build, TaskListener listener)
+			throws IOException, InterruptedException {
+		FilePath workspace = build.getWorkspace();
+		FilePath snapshots = workspace.getParent().child(
+				workspace.getName() + "@cifs");
+		final FilePath snapshot = snapshots.child(String.valueOf(build
+				.getNumber()));
+		final String key = snapshot.getRemote();
+		synchronized (ACTIVE) {
+			ACTIVE.add(key);
+		}
+		int count;
+		try {
+			deleteStale(snapshots);
+			count = snapshot(publisher.getEntries(), build
+					.getEnvironment(listener), workspace, snapshot);
+		} catch (IOException e) {
+			release(key);
+			throw e;
+		} catch (InterruptedException e) {
+			release(key);
+			throw e;
+		} catch (RuntimeException e) {
+			release(key);
+			throw e;
+		}
+
+		final BackgroundPublishAction action = new BackgroundPublishAction();
+		build.addAction(action);
+		QUEUE.execute(new Runnable() {
+			public void run() {
+				action.started();
+				StreamTaskListener log = null;
+				try {
+					log = new StreamTaskListener(new File(build.getRootDir(),
+							LOG_NAME));
+					publisher.publish(build, log, snapshot);
+					action.finished(null);
+				} catch (Throwable th) {
+					if (log != null) {
+						th.printStackTrace(log.error("Failed to upload files"));
+					}
+					action.finished(th);
+				} finally {
+					try {
+						snapshot.deleteRecursive();
+						release(key);
+						if (log != null) {
+							log.close();
+						}
+						build.save();
+					} catch (Exception e) {
+						// the state is still shown until the next restart
+					}
+				}
+			}
+		});
+		listener.getLogger().println(
+				"Queued " + count + " files for publishing in the background.");
+	}
+
+	/**
+	 * Deletes the snapshots of all workspaces publishing in the background
+	 * which can be reached, in the background so a slow build node doesn't
+	 * delay the start.
+	 */
+	@Initializer(after = InitMilestone.JOB_LOADED)
+	public static void deleteStaleSnapshots() {
+		QUEUE.execute(new Runnable() {
+			public void run() {
+				for (AbstractProject<?, ?> project : Hudson.getInstance()
+						.getAllItems(AbstractProject.class)) {
+					CIFSPublisher publisher = project.getPublishersList().get(
+							CIFSPublisher.class);
+					FilePath workspace = project.getSomeWorkspace();
+					if (publisher == null || !publisher.isBackground()
+							|| workspace == null) {
+						continue;
+					}
+					try {
+						deleteStale(workspace.getParent().child(
+								workspace.getName() + "@cifs"));
+					} catch (Exception e) {
+						// tried again when the workspace publishes next
+					}
+				}
+			}
+		});
+	}
+
+	private static void release(String key) {
+		synchronized (ACTIVE) {
+			ACTIVE.remove(key);
+		}
+	}
+
+	/**
+	 * Deletes the snapshots of a workspace no queued or running publish
+	 * uses.
+	 */
+	private static void deleteStale(FilePath snapshots) throws IOException,
+			InterruptedException {
+		if (!snapshots.exists()) {
+			return;
+		}
+		for (FilePath dir : snapshots.listDirectories()) {
+			boolean active;
+			synchronized (ACTIVE) {
+				active = ACTIVE.contains(dir.getRemote());
+			}
+			if (!active) {
+				dir.deleteRecursive();
+			}
+		}
+	}
+
+	/**
+	 * Tells whether a source lies inside the workspace and is thus copied
+	 * to the snapshot: it is relative and does not leave the workspace
+	 * through "..".
+	 */
+	static boolean isInWorkspace(String source) {
+		String path = source.replace('\\', '/');
+		if (path.startsWith("/")
+				|| (path.length() > 1 && path.charAt(1) == ':')) {
+			return false;
+		}
+		int depth = 0;
+		for (String name : path.split("/")) {
+			if (name.equals("..")) {
+				if (--depth < 0) {
+					return false;
+				}
+			} else if (name.length() > 0 && !name.equals(".")) {
+				depth++;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the files of the entries inside the workspace to the snapshot,
+	 * keeping their paths. Sources outside of the workspace are not copied,
+	 * the upload reads them from their original location, see
+	 * {@link EntryCopier#setSnapshot(FilePath)}.
+	 * 
+	 * @return the number of files copied
+	 */
+	private static int snapshot(List<Entry> entries,
+			Map<String, String> envVars, FilePath workspace, FilePath snapshot)
+			throws IOException, InterruptedException {
+		if (snapshot.exists()) {
+			snapshot.deleteRecursive();
+		}
+		snapshot.mkdirs();
+		int count = 0;
+		for (Entry entry : entries) {
+			String expanded = Util.replaceMacro(entry.getSourceFile(), envVars);
+			if (!isInWorkspace(expanded)) {
+				continue;
+			}
+			FilePath source = new FilePath(workspace, expanded);
+			if (source.exists() && source.isDirectory()) {
+				count += workspace.copyRecursiveTo(expanded + "/**", snapshot);
+			} else {
+				count += workspace.copyRecursiveTo(expanded, snapshot);
+			}
+		}
+		return count;
+	}
+}
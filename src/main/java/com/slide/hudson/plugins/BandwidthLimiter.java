@@ -0,0 +1,339 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * <p>
+ * Caps the rate at which data is written to a share with a token bucket
+ * shared by all uploads to the share, across all builds.
+ * </p>
+ * <p>
+ * The buckets live on the master. Uploads running on a build node lease
+ * bytes from the master's bucket in small batches, so the cap holds for the
+ * share as a whole wherever the uploads run. The shares of an upload on a
+ * node are connected to the master's buckets by
+ * {@link #connect(Tokens, List)} with the proxy returned by
+ * {@link #export(FilePath, List)}, which is passed along with each upload
+ * so a build node reconnecting to the master gets the proxy of its new
+ * channel.
+ * </p>
+ * <p>
+ * The cap can be restricted to times of day, written as comma separated
+ * windows like "08:00-18:00, 22:00-02:00". Outside of them uploads run at
+ * full speed.
+ * </p>
+ */
+public class BandwidthLimiter {
+	/** The most bytes a node leases from the master at once. */
+	private static final long LEASE_SIZE = 64 * 1024;
+
+	/** How long leased bytes may be used, in milliseconds. */
+	private static final long LEASE_TIME = 1000;
+
+	/** The bucket holds this fraction of a second's worth of bytes. */
+	private static final int BURST_DIVISOR = 8;
+
+	/** How long an unused limiter is kept, in milliseconds. */
+	static final long IDLE_TIMEOUT = 10 * 60 * 1000;
+
+	private static final Map<String, BandwidthLimiter> LIMITERS = new HashMap<String, BandwidthLimiter>();
+
+	private static final Map<VirtualChannel, Tokens> EXPORTED = new WeakHashMap<VirtualChannel, Tokens>();
+
+	/**
+	 * Hands out the bytes of the buckets on the master.
+	 */
+	public interface Tokens {
+		/**
+		 * Waits until bytes may be written to a share.
+		 * 
+		 * @param key
+		 *            the session key of the share
+		 * @param wanted
+		 *            the number of bytes to write
+		 * @return the number of bytes that may be written, at least one and
+		 *         at most the wanted number
+		 */
+		long take(String key, long wanted) throws IOException,
+				InterruptedException;
+	}
+
+	/** The master's buckets, handed out to the build nodes. */
+	static final Tokens BUCKETS = new Tokens() {
+		public long take(String key, long wanted)
+				throws InterruptedException {
+			BandwidthLimiter limiter;
+			synchronized (LIMITERS) {
+				limiter = LIMITERS.get(key);
+				if (limiter != null) {
+					// keeps the limiter of an upload from a node from being
+					// evicted while the node is using it
+					limiter.lastUsed = System.currentTimeMillis();
+				}
+			}
+			return limiter == null ? wanted : limiter.takeLocal(wanted);
+		}
+	};
+
+	private final String key;
+	private long rate;
+	private int[] windows;
+
+	/** The bytes in the bucket. */
+	private double tokens;
+	private long filled = System.nanoTime();
+
+	/** The bytes leased from the master and until when they can be used. */
+	private long leased;
+	private long leaseExpires;
+
+	volatile long lastUsed = System.currentTimeMillis();
+
+	private BandwidthLimiter(String key) {
+		this.key = key;
+	}
+
+	/**
+	 * Gets the limiter for a share, updated to the share's current settings.
+	 */
+	static BandwidthLimiter of(CIFSShare share) {
+		int[] windows;
+		try {
+			windows = parseSchedule(share.getBandwidthSchedule());
+		} catch (IllegalArgumentException e) {
+			// rather limit all day than not at all
+			windows = new int[0];
+		}
+		String key = share.getSessionKey();
+		synchronized (LIMITERS) {
+			evictIdle();
+			BandwidthLimiter limiter = LIMITERS.get(key);
+			if (limiter == null) {
+				limiter = new BandwidthLimiter(key);
+				LIMITERS.put(key, limiter);
+			}
+			limiter.configure(share.getBandwidthLimit() * 1024L, windows);
+			limiter.lastUsed = System.currentTimeMillis();
+			return limiter;
+		}
+	}
+
+	/**
+	 * Drops the limiters not used for a while, like those of shares whose
+	 * settings changed and which are known by a new key now. Must hold the
+	 * lock on {@link #LIMITERS}.
+	 */
+	private static void evictIdle() {
+		long now = System.currentTimeMillis();
+		for (Iterator<BandwidthLimiter> it = LIMITERS.values().iterator(); it
+				.hasNext();) {
+			if (now - it.next().lastUsed > IDLE_TIMEOUT) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Makes the master's buckets for the shares available to uploads on the
+	 * node holding a file.
+	 * 
+	 * @return the proxy to pass to {@link #connect(Tokens, List)} on the
+	 *         node, or
+	 *         null if the file is on the master or none of the shares is
+	 *         limited
+	 */
+	static Tokens export(FilePath file, List<CIFSShare> shares) {
+		if (!file.isRemote()) {
+			return null;
+		}
+		boolean limited = false;
+		for (CIFSShare share : shares) {
+			if (share.getBandwidthLimit() > 0) {
+				// the node leases from the bucket, so it must exist here
+				of(share);
+				limited = true;
+			}
+		}
+		if (!limited) {
+			return null;
+		}
+		VirtualChannel channel = file.getChannel();
+		synchronized (EXPORTED) {
+			Tokens tokens = EXPORTED.get(channel);
+			if (tokens == null) {
+				tokens = channel.export(Tokens.class, BUCKETS);
+				EXPORTED.put(channel, tokens);
+			}
+			return tokens;
+		}
+	}
+
+	/**
+	 * Makes the uploads of shares on this build node use the master's
+	 * buckets.
+	 * 
+	 * @param tokens
+	 *            the proxy returned by {@link #export(FilePath, List)}, or
+	 *            null if the upload runs on the master
+	 * @param shares
+	 *            the shares as received by the node
+	 */
+	static void connect(Tokens tokens, List<CIFSShare> shares) {
+		for (CIFSShare share : shares) {
+			share.setBandwidthTokens(tokens);
+		}
+	}
+
+	private synchronized void configure(long rate, int[] windows) {
+		this.rate = rate;
+		this.windows = windows;
+	}
+
+	/**
+	 * Waits until bytes may be written to the share.
+	 * 
+	 * @param wanted
+	 *            the number of bytes to write
+	 * @param tokens
+	 *            the master's buckets if this is a build node, see
+	 *            {@link #connect(Tokens, List)}, null to use the bucket of
+	 *            this limiter
+	 * @return the number of bytes that may be written, at least one and at
+	 *         most the wanted number
+	 */
+	long take(long wanted, Tokens tokens) throws IOException,
+			InterruptedException {
+		lastUsed = System.currentTimeMillis();
+		if (tokens == null) {
+			return takeLocal(wanted);
+		}
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (leased <= 0 || now > leaseExpires) {
+				leased = tokens.take(key, Math.max(wanted, LEASE_SIZE));
+				leaseExpires = now + LEASE_TIME;
+			}
+			long granted = Math.min(wanted, leased);
+			leased -= granted;
+			return granted;
+		}
+	}
+
+	private synchronized long takeLocal(long wanted)
+			throws InterruptedException {
+		lastUsed = System.currentTimeMillis();
+		while (true) {
+			if (rate <= 0 || !isLimited(windows, Calendar.getInstance())) {
+				return wanted;
+			}
+			long now = System.nanoTime();
+			double capacity = Math.max(rate / BURST_DIVISOR, 1);
+			tokens = Math.min(capacity, tokens + (now - filled) * rate / 1e9);
+			filled = now;
+			if (tokens >= 1) {
+				long granted = Math.min(wanted, (long) tokens);
+				tokens -= granted;
+				return granted;
+			}
+			wait(Math.max(1, (long) Math.ceil((1 - tokens) * 1000 / rate)));
+		}
+	}
+
+	/**
+	 * Checks whether the cap applies at the given time.
+	 * 
+	 * @param windows
+	 *            the windows returned by {@link #parseSchedule(String)}
+	 */
+	static boolean isLimited(int[] windows, Calendar time) {
+		if (windows.length == 0) {
+			return true;
+		}
+		int minute = time.get(Calendar.HOUR_OF_DAY) * 60
+				+ time.get(Calendar.MINUTE);
+		for (int i = 0; i < windows.length; i += 2) {
+			int start = windows[i];
+			int end = windows[i + 1];
+			if (start <= end ? minute >= start && minute < end
+					: minute >= start || minute < end) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Parses a schedule of comma separated windows like "08:00-18:00".
+	 * Windows ending before they start span midnight.
+	 * 
+	 * @return the start and end minute of each window, empty if the schedule
+	 *         is empty
+	 * @throws IllegalArgumentException
+	 *             if the schedule is invalid
+	 */
+	static int[] parseSchedule(String schedule) {
+		if (schedule == null || schedule.trim().length() == 0) {
+			return new int[0];
+		}
+		String[] parts = schedule.split(",");
+		int[] windows = new int[parts.length * 2];
+		for (int i = 0; i < parts.length; i++) {
+			String[] times = parts[i].split("-");
+			if (times.length != 2) {
+				throw new IllegalArgumentException("Not a time window: "
+						+ parts[i].trim());
+			}
+			windows[i * 2] = parseTime(times[0]);
+			windows[i * 2 + 1] = parseTime(times[1]);
+		}
+		return windows;
+	}
+
+	private static int parseTime(String time) {
+		time = time.trim();
+		String[] fields = time.split(":");
+		try {
+			int hour = Integer.parseInt(fields[0]);
+			int minute = fields.length > 1 ? Integer.parseInt(fields[1]) : 0;
+			if (fields.length <= 2 && hour >= 0 && hour <= 24 && minute >= 0
+					&& minute < 60 && hour * 60 + minute <= 24 * 60) {
+				return hour * 60 + minute;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException("Not a time of day: " + time);
+	}
+}
@@ -0,0 +1,91 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package com.slide.hudson.plugins;
+
+import java.util.LinkedList;
+
+/**
+ * <p>
+ * A small pool of transfer buffers, so concurrent and consecutive uploads
+ * reuse their buffers instead of allocating new ones for every file. Buffer
+ * sizes are rounded up to a power of two and only a few buffers of each size
+ * are kept.
+ * </p>
+ */
+public final class BufferPool {
+	/** The smallest buffer handed out. */
+	public static final int MIN_SIZE = 4 * 1024;
+
+	/** The largest buffer handed out. */
+	public static final int MAX_SIZE = 4 * 1024 * 1024;
+
+	private static final int MAX_POOLED = 8;
+
+	@SuppressWarnings("unchecked")
+	private static final LinkedList<byte[]>[] free = new LinkedList[sizeClass(MAX_SIZE) + 1];
+
+	static {
+		for (int i = 0; i < free.length; i++) {
+			free[i] = new LinkedList<byte[]>();
+		}
+	}
+
+	private BufferPool() {
+	}
+
+	/**
+	 * Gets a buffer of at least the given size, capped to {@link #MAX_SIZE}.
+	 */
+	public static byte[] acquire(int size) {
+		int sizeClass = sizeClass(size);
+		synchronized (free) {
+			if (!free[sizeClass].isEmpty()) {
+				return free[sizeClass].removeFirst();
+			}
+		}
+		return new byte[MIN_SIZE << sizeClass];
+	}
+
+	/**
+	 * Returns a buffer obtained from {@link #acquire(int)} to the pool.
+	 */
+	public static void release(byte[] buffer) {
+		int sizeClass = sizeClass(buffer.length);
+		if ((MIN_SIZE << sizeClass) != buffer.length) {
+			return;
+		}
+		synchronized (free) {
+			if (free[sizeClass].size() < MAX_POOLED) {
+				free[sizeClass].addFirst(buffer);
+			}
+		}
+	}
+
+	private static int sizeClass(int size) {
+		int sizeClass = 0;
+		while ((MIN_SIZE << sizeClass) < size && (MIN_SIZE << sizeClass) < MAX_SIZE) {
+			sizeClass++;
+		}
+		return sizeClass;
+	}
+}
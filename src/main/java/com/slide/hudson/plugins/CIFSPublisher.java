@@ -23,13 +23,16 @@ THE SOFTWARE.
 package com.slide.hudson.plugins;
 
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Action;
 import hudson.model.BuildListener;
 import hudson.model.Descriptor;
 import hudson.model.Result;
+import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Notifier;
@@ -72,15 +75,53 @@ public class CIFSPublisher extends Notifier {
 
 	private String shareUrl;
 	private final List<Entry> entries = new ArrayList<Entry>();
-	private String winsServer;	
+	/**
+	 * Only read from old configurations, the WINS server is set for each
+	 * share now, see {@link #readResolve()}.
+	 */
+	private transient String winsServer;
 
-	public void setWinsServer(String winsServer) {
-		this.winsServer = winsServer;
-	}
+	private boolean uploadFromNode;
+
+	private List<ShareTarget> additionalShares = new ArrayList<ShareTarget>();
+	private String fanOutPolicy;
+
+	private boolean background;
 
 	public CIFSPublisher() {
 	}
 
+	/**
+	 * Upgrades an old configuration: it has no additional shares, and its
+	 * WINS server is moved to the shares published to which have none of
+	 * their own.
+	 */
+	private Object readResolve() {
+		if (additionalShares == null) {
+			additionalShares = new ArrayList<ShareTarget>();
+		}
+		if (Util.fixEmptyAndTrim(winsServer) != null) {
+			List<CIFSShare> targets = new ArrayList<CIFSShare>();
+			targets.add(getShare());
+			for (ShareTarget target : additionalShares) {
+				targets.add(getShare(target.getShareUrl()));
+			}
+			boolean changed = false;
+			for (CIFSShare share : targets) {
+				if (share != null
+						&& Util.fixEmptyAndTrim(share.getWinsServer()) == null) {
+					share.setWinsServer(winsServer.trim());
+					changed = true;
+				}
+			}
+			if (changed) {
+				DESCRIPTOR.save();
+			}
+			winsServer = null;
+		}
+		return this;
+	}
+
 	/**
 	 * The constructor which take a configured CIFS share name to publishing the
 	 * artifacts.
@@ -115,8 +156,12 @@ public class CIFSPublisher extends Notifier {
 			// default
 			return shares[0];
 		}
-		for (CIFSShare share : shares) {
-			if (share.getDisplayUrl().equals(shareUrl)) {
+		return getShare(shareUrl);
+	}
+
+	private static CIFSShare getShare(String displayUrl) {
+		for (CIFSShare share : DESCRIPTOR.getShares()) {
+			if (share.getDisplayUrl().equals(displayUrl)) {
 				return share;
 			}
 		}
@@ -134,9 +179,67 @@ public class CIFSPublisher extends Notifier {
 	public void setShareUrl(String shareUrl) {
 		this.shareUrl = shareUrl;
 	}
+
+	/**
+	 * True if the files should be uploaded to the share by the node the
+	 * build ran on instead of being relayed through the master.
+	 * 
+	 * @return the uploadFromNode
+	 */
+	public boolean isUploadFromNode() {
+		return uploadFromNode;
+	}
+
+	public void setUploadFromNode(boolean uploadFromNode) {
+		this.uploadFromNode = uploadFromNode;
+	}
+
+	/**
+	 * The further shares which get the same files as the selected share.
+	 * Every file is read once and written to all shares concurrently.
+	 * 
+	 * @return the additionalShares
+	 */
+	public List<ShareTarget> getAdditionalShares() {
+		return additionalShares;
+	}
+
+	/**
+	 * What happens when one of several shares is slower than the others, see
+	 * {@link FanOut#WAIT} and {@link FanOut#DETACH}.
+	 * 
+	 * @return the fanOutPolicy
+	 */
+	public String getFanOutPolicy() {
+		return fanOutPolicy;
+	}
+
+	public void setFanOutPolicy(String fanOutPolicy) {
+		this.fanOutPolicy = fanOutPolicy;
+	}
+
+	/**
+	 * True if the files should be published in the background after the
+	 * build, see {@link BackgroundPublisher}.
+	 * 
+	 * @return the background
+	 */
+	public boolean isBackground() {
+		return background;
+	}
+
+	public void setBackground(boolean background) {
+		this.background = background;
+	}
 		
+	@Override
+	public Action getProjectAction(AbstractProject<?, ?> project) {
+		return new PublishTrendAction(project);
+	}
+
 	public BuildStepMonitor getRequiredMonitorService() {
-		return BuildStepMonitor.BUILD;
+		// a background publish doesn't need to wait for the previous build
+		return background ? BuildStepMonitor.NONE : BuildStepMonitor.BUILD;
 	}
 
 	/**
@@ -161,32 +264,118 @@ public class CIFSPublisher extends Notifier {
 			return true;
 		}
 
-		CIFSShare share = null;
+		if (background) {
+			try {
+				BackgroundPublisher.queue(this, build, listener);
+			} catch (Throwable th) {
+				th.printStackTrace(listener.error("Failed to queue the files for publishing"));
+				build.setResult(Result.UNSTABLE);
+			}
+			return true;
+		}
+
 		try {
-			share = getShare();
-			if(share != null) {
-				listener.getLogger().println("Connecting to " + share.getServer());
+			publish(build, listener, null);
+		} catch (Throwable th) {
+			th.printStackTrace(listener.error("Failed to upload files"));
+			build.setResult(Result.UNSTABLE);
+		}
+
+		return true;
+	}
 
-				EntryCopier copier = new EntryCopier(build, listener, share);
-				if (winsServer != null && winsServer.length() > 0) {
-					System.setProperty("jcifs.netbios.wins", winsServer);
+	/**
+	 * Publishes the files of the entries.
+	 * 
+	 * @param snapshot
+	 *            the snapshot of the workspace to take the files inside the
+	 *            workspace from, null to take them from the workspace
+	 */
+	void publish(AbstractBuild<?, ?> build, TaskListener listener,
+			FilePath snapshot) throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		CIFSShare share = getShare();
+		if(share != null) {
+			listener.getLogger().println("Connecting to " + share.getServer());
+
+			List<CIFSShare> others = new ArrayList<CIFSShare>();
+			for (ShareTarget target : additionalShares) {
+				CIFSShare other = getShare(target.getShareUrl());
+				if (other == null) {
+					listener.getLogger().println("Could not retrieve the share " + target.getShareUrl() + ", please check global configuration for CIFS shares.");
+				} else if (other != share && !others.contains(other)) {
+					listener.getLogger().println("Connecting to " + other.getServer());
+					others.add(other);
 				}
+			}
+
+			List<CIFSShare> all = new ArrayList<CIFSShare>(others);
+			all.add(0, share);
+			PublishScheduler admission = PublishScheduler.admit(all,
+					listener.getLogger());
 
-				int copied = 0;
-				for (Entry e : entries) {
-					copied += copier.copy(e);
+			EntryCopier copier;
+			int copied = 0;
+			try {
+				copier = new EntryCopier(build, listener, share,
+						uploadFromNode, others, new FanOut(fanOutPolicy));
+				copier.setSnapshot(snapshot);
+				try {
+					for (Entry e : entries) {
+						copied += copier.copy(e);
+					}
+				} finally {
+					copier.close();
 				}
+			} finally {
+				admission.release();
+			}
 
-				listener.getLogger().println("Transfered " + copied + " files.");
-			} else {
-				listener.getLogger().println("Could not retrieve the selected share, please check global configuration for CIFS shares.");
+			PublishMetrics metrics = copier.getMetrics();
+			metrics.addQueueTime(admission.getWaitMillis());
+			metrics.finish(System.currentTimeMillis() - start, copier
+					.getSkippedCount(), copier.getFailedCount(), copier
+					.getRetriedCount());
+			build.addAction(new PublishReportAction(share.getDisplayUrl(),
+					metrics));
+
+			listener.getLogger().println("Transfered " + copied + " files.");
+			listener.getLogger().println("Transfered "
+					+ PublishMetrics.formatBytes(metrics.getBytes()) + " at "
+					+ PublishMetrics.formatBytes(metrics.getThroughput())
+					+ "/s, 50%/90%/99% of the files took up to "
+					+ metrics.getLatencyP50() + "/" + metrics.getLatencyP90()
+					+ "/" + metrics.getLatencyP99() + " ms.");
+			if (copier.getSkippedCount() > 0) {
+				listener.getLogger().println("Skipped "
+						+ copier.getSkippedCount() + " unchanged files.");
 			}
-		} catch (Throwable th) {
-			th.printStackTrace(listener.error("Failed to upload files"));
-			build.setResult(Result.UNSTABLE);
+			if (copier.getFailedCount() > 0) {
+				listener.getLogger().println("Failed to transfer "
+						+ copier.getFailedCount() + " files.");
+			}
+			if (!others.isEmpty()) {
+				for (CIFSShare target : all) {
+					if (copier.getFailedCount(target) > 0) {
+						listener.getLogger().println("Failed to transfer "
+								+ copier.getFailedCount(target) + " files to "
+								+ target.getDisplayUrl() + ".");
+					}
+				}
+			}
+			if (copier.getRetriedCount() > 0) {
+				listener.getLogger().println("Retried "
+						+ copier.getRetriedCount() + " transfers.");
+			}
+			if (copier.getTripCount() > 0) {
+				listener.getLogger().println("Share stopped responding "
+						+ copier.getTripCount() + " times, "
+						+ copier.getRejectedCount()
+						+ " transfers were not attempted.");
+			}
+		} else {
+			listener.getLogger().println("Could not retrieve the selected share, please check global configuration for CIFS shares.");
 		}
-
-		return true;
 	}
 
 	/**
@@ -260,8 +449,14 @@ public class CIFSPublisher extends Notifier {
 		@Override
 		public Publisher newInstance(StaplerRequest req, JSONObject formData) {
 			CIFSPublisher pub = new CIFSPublisher();
-			if (formData.containsKey("winsServer")) {
-				pub.setWinsServer(formData.getString("winsServer"));
+			if (formData.containsKey("uploadFromNode")) {
+				pub.setUploadFromNode(formData.getBoolean("uploadFromNode"));
+			}
+			if (formData.containsKey("fanOutPolicy")) {
+				pub.setFanOutPolicy(formData.getString("fanOutPolicy"));
+			}
+			if (formData.containsKey("background")) {
+				pub.setBackground(formData.getBoolean("background"));
 			}
 
 			req.bindParameters(pub, "publisher.");
@@ -269,6 +464,9 @@ public class CIFSPublisher extends Notifier {
 			
 			pub.getEntries().addAll(
 					req.bindJSONToList(Entry.class, formData.get("e")));
+			pub.getAdditionalShares().addAll(
+					req.bindJSONToList(ShareTarget.class, formData
+							.get("targets")));
 			return pub;
 		}
 
@@ -296,13 +494,48 @@ public class CIFSPublisher extends Notifier {
 		 * @see hudson.model.Descriptor#configure(org.kohsuke.stapler.StaplerRequest)
 		 */
 		@Override
-		public boolean configure(StaplerRequest req, JSONObject formData) {
-			shares.replaceBy(req.bindJSONToList(CIFSShare.class,
-						formData.get("share")));
+		public boolean configure(StaplerRequest req, JSONObject formData)
+				throws FormException {
+			List<CIFSShare> configured = req.bindJSONToList(CIFSShare.class,
+					formData.get("share"));
+			CIFSShare conflict = SmbContext.findConflict(configured);
+			if (conflict != null) {
+				throw new FormException("The time out, socket buffer size, "
+						+ "requests in flight and signing of "
+						+ conflict.getDisplayUrl() + " differ from those of "
+						+ "the other SMB1 shares. The SMB1 client has one set "
+						+ "of these settings for all shares, so make them "
+						+ "equal or use SMB2 for this share.", "share");
+			}
+			if (!CIFSShare.isSmb2Supported()) {
+				for (CIFSShare share : configured) {
+					if (CIFSShare.SMB2.equals(share.getProtocol())) {
+						throw new FormException("SMB2/SMB3 needs Java 8 or "
+								+ "newer, use SMB1 for "
+								+ share.getDisplayUrl() + ".", "share");
+					}
+				}
+			}
+			shares.replaceBy(configured);
 			save();
 			return true;
 		}
 
+		/**
+		 * Validates the times of day a bandwidth limit applies.
+		 * 
+		 * @param request
+		 *            the current {@link javax.servlet.http.HttpServletRequest}
+		 */
+		public FormValidation doBandwidthScheduleCheck(StaplerRequest request) {
+			try {
+				BandwidthLimiter.parseSchedule(request.getParameter("value"));
+				return FormValidation.ok();
+			} catch (IllegalArgumentException e) {
+				return FormValidation.error(e.getMessage());
+			}
+		}
+
 		/**
 		 * This method validates the current entered CIFS configuration data.
 		 * That is made by create a CIFS connection.
@@ -23,19 +23,27 @@ THE SOFTWARE.
 package com.slide.hudson.plugins;
 
 import hudson.FilePath;
+import hudson.FilePath.FileCallable;
 import hudson.Util;
+import hudson.remoting.VirtualChannel;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import java.net.URLEncoder;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
-import jcifs.smb.SmbFile;
-import jcifs.smb.SmbException;
 
 /**
  * <p>
@@ -44,10 +52,30 @@ import jcifs.smb.SmbException;
  * 
  * @author Alex Earl
  */
-public class CIFSShare {
+public class CIFSShare implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	/** The Constant DEFAULT_CIFS_PORT. */
-	private static final int DEFAULT_SMB_PORT = 445;
+	static final int DEFAULT_SMB_PORT = 445;
+
+	/** The protocol of jcifs, SMB1. */
+	public static final String SMB1 = "smb1";
+
+	/** The protocol of the SMB2 client, negotiating SMB2 or SMB3. */
+	public static final String SMB2 = "smb2";
+
+	/** The default transfer buffer size in KiB. */
+	private static final int DEFAULT_BUFFER_SIZE = 64;
+
+	/** The default number of chunks a large file is split into. */
+	private static final int DEFAULT_CHUNKS = 4;
+
+	/** The number of bytes compared before resuming an upload. */
+	private static final int RESUME_CHECK_SIZE = 64 * 1024;
+
+	/** The default delay before the first retry in milliseconds. */
+	private static final int DEFAULT_RETRY_DELAY = 1000;
 
 	/** The server. */
 	private String server;
@@ -70,6 +98,72 @@ public class CIFSShare {
 	/** The CIFS dir. */
 	private String dir = "/";
 
+	/** The number of files uploaded concurrently. */
+	private int workers;
+
+	/** The transfer buffer size in KiB. */
+	private int bufferSize;
+
+	/** Whether the buffer size is adapted to the observed throughput. */
+	private boolean adaptiveBuffer;
+
+	/** The size in MiB from which files are uploaded in chunks, 0 to never. */
+	private int chunkThreshold;
+
+	/** The number of chunks written concurrently. */
+	private int chunks;
+
+	/** How often an interrupted upload is resumed before giving up. */
+	private int resumeAttempts;
+
+	/** Whether the end of the data on the share is checked before resuming. */
+	private boolean verifyResume;
+
+	/** How often a failed transfer is tried again. */
+	private int retries;
+
+	/** The delay before the first retry in milliseconds. */
+	private int retryDelay;
+
+	/** The random variation of the retry delay in percent. */
+	private int retryJitter;
+
+	/** The number of consecutive failures after which transfers fail fast. */
+	private int circuitBreakerThreshold;
+
+	/** Whether files relayed through the master are compressed on the way. */
+	private boolean compressTransfer;
+
+	/** The most KiB per second written to the share, 0 for no limit. */
+	private int bandwidthLimit;
+
+	/** The times of day the bandwidth limit applies, empty for always. */
+	private String bandwidthSchedule;
+
+	/** The number of builds publishing to the share at once, 0 for any. */
+	private int maxPublishes;
+
+	/** The WINS server resolving the server name. */
+	private String winsServer;
+
+	/** The socket buffer size in KiB. */
+	private int socketBufferSize;
+
+	/** The number of requests in flight per connection. */
+	private int maxMux;
+
+	/** Whether SMB messages are signed. */
+	private boolean signing;
+
+	/** The SMB protocol, {@link #SMB1} or {@link #SMB2}. */
+	private String protocol;
+
+	/** The cached session key. */
+	private transient String sessionKey;
+
+	/** The master's bandwidth limits, for uploads from a build node. */
+	private transient BandwidthLimiter.Tokens bandwidthTokens;
+
 	/**
 	 * Instantiates a new CIFS share..
 	 */
@@ -94,10 +188,60 @@ public class CIFSShare {
 	 *            the domain
 	 * @param dir
 	 *            the cifs dir
+	 * @param workers
+	 *            the number of files uploaded concurrently
+	 * @param bufferSize
+	 *            the transfer buffer size in KiB
+	 * @param adaptiveBuffer
+	 *            whether the buffer size is adapted to the throughput
+	 * @param chunkThreshold
+	 *            the size in MiB from which files are uploaded in chunks
+	 * @param chunks
+	 *            the number of chunks written concurrently
+	 * @param resumeAttempts
+	 *            how often an interrupted upload is resumed
+	 * @param verifyResume
+	 *            whether the end of the data on the share is checked before
+	 *            resuming
+	 * @param retries
+	 *            how often a failed transfer is tried again
+	 * @param retryDelay
+	 *            the delay before the first retry in milliseconds
+	 * @param retryJitter
+	 *            the random variation of the retry delay in percent
+	 * @param circuitBreakerThreshold
+	 *            the number of consecutive failures after which transfers
+	 *            fail fast
+	 * @param compressTransfer
+	 *            whether files relayed through the master are compressed on
+	 *            the way
+	 * @param bandwidthLimit
+	 *            the most KiB per second written to the share
+	 * @param bandwidthSchedule
+	 *            the times of day the bandwidth limit applies
+	 * @param maxPublishes
+	 *            the number of builds publishing to the share at once
+	 * @param winsServer
+	 *            the WINS server resolving the server name
+	 * @param socketBufferSize
+	 *            the socket buffer size in KiB
+	 * @param maxMux
+	 *            the number of requests in flight per connection
+	 * @param signing
+	 *            whether SMB messages are signed
+	 * @param protocol
+	 *            the SMB protocol, {@link #SMB1} or {@link #SMB2}
 	 */
 	@DataBoundConstructor
 	public CIFSShare(String server, int port, int timeOut, String username,
-			String password, String domain, String dir) {
+			String password, String domain, String dir, int workers,
+			int bufferSize, boolean adaptiveBuffer, int chunkThreshold,
+			int chunks, int resumeAttempts, boolean verifyResume,
+			int retries, int retryDelay, int retryJitter,
+			int circuitBreakerThreshold, boolean compressTransfer,
+			int bandwidthLimit, String bandwidthSchedule, int maxPublishes,
+			String winsServer, int socketBufferSize, int maxMux,
+			boolean signing, String protocol) {
 		this.server = server;
 		this.port = port;
 		this.timeOut = timeOut;
@@ -105,6 +249,26 @@ public class CIFSShare {
 		this.password = password;
 		this.domain = domain;
 		this.dir = dir;
+		this.workers = workers;
+		this.bufferSize = bufferSize;
+		this.adaptiveBuffer = adaptiveBuffer;
+		this.chunkThreshold = chunkThreshold;
+		this.chunks = chunks;
+		this.resumeAttempts = resumeAttempts;
+		this.verifyResume = verifyResume;
+		this.retries = retries;
+		this.retryDelay = retryDelay;
+		this.retryJitter = retryJitter;
+		this.circuitBreakerThreshold = circuitBreakerThreshold;
+		this.compressTransfer = compressTransfer;
+		this.bandwidthLimit = bandwidthLimit;
+		this.bandwidthSchedule = bandwidthSchedule;
+		this.maxPublishes = maxPublishes;
+		this.winsServer = winsServer;
+		this.socketBufferSize = socketBufferSize;
+		this.maxMux = maxMux;
+		this.signing = signing;
+		this.protocol = protocol;
 	}
 
 	/**
@@ -290,6 +454,405 @@ public class CIFSShare {
 		this.dir = dir.trim();
 	}
 
+	/**
+	 * Gets the number of files uploaded to this share concurrently, by all
+	 * publishes together.
+	 * 
+	 * @return the number of upload workers, at least 1
+	 */
+	public int getWorkers() {
+		return workers > 0 ? workers : 1;
+	}
+
+	/**
+	 * Sets the number of files uploaded to this share concurrently.
+	 * 
+	 * @param workers
+	 *            the number of upload workers
+	 */
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * Gets the transfer buffer size.
+	 * 
+	 * @return the buffer size in KiB
+	 */
+	public int getBufferSize() {
+		return bufferSize > 0 ? bufferSize : DEFAULT_BUFFER_SIZE;
+	}
+
+	/**
+	 * Sets the transfer buffer size.
+	 * 
+	 * @param bufferSize
+	 *            the buffer size in KiB
+	 */
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Whether the transfer buffer grows beyond the configured size as long as
+	 * larger writes are faster.
+	 * 
+	 * @return true if the buffer size is adaptive
+	 */
+	public boolean isAdaptiveBuffer() {
+		return adaptiveBuffer;
+	}
+
+	/**
+	 * Sets whether the transfer buffer size is adaptive.
+	 * 
+	 * @param adaptiveBuffer
+	 *            true if the buffer size should be adaptive
+	 */
+	public void setAdaptiveBuffer(boolean adaptiveBuffer) {
+		this.adaptiveBuffer = adaptiveBuffer;
+	}
+
+	/**
+	 * Gets the size from which files are split into chunks which are written
+	 * concurrently.
+	 * 
+	 * @return the threshold in MiB, 0 if files are never split
+	 */
+	public int getChunkThreshold() {
+		return chunkThreshold;
+	}
+
+	/**
+	 * Sets the size from which files are split into chunks.
+	 * 
+	 * @param chunkThreshold
+	 *            the threshold in MiB, 0 to never split files
+	 */
+	public void setChunkThreshold(int chunkThreshold) {
+		this.chunkThreshold = chunkThreshold;
+	}
+
+	/**
+	 * Gets the number of chunks a large file is split into.
+	 * 
+	 * @return the number of chunks written concurrently
+	 */
+	public int getChunks() {
+		return chunks > 1 ? chunks : DEFAULT_CHUNKS;
+	}
+
+	/**
+	 * Sets the number of chunks a large file is split into.
+	 * 
+	 * @param chunks
+	 *            the number of chunks written concurrently
+	 */
+	public void setChunks(int chunks) {
+		this.chunks = chunks;
+	}
+
+	/**
+	 * Gets how often an interrupted upload is resumed before giving up.
+	 * 
+	 * @return the number of resume attempts, 0 if uploads are not resumed
+	 */
+	public int getResumeAttempts() {
+		return resumeAttempts;
+	}
+
+	/**
+	 * Sets how often an interrupted upload is resumed before giving up.
+	 * 
+	 * @param resumeAttempts
+	 *            the number of resume attempts
+	 */
+	public void setResumeAttempts(int resumeAttempts) {
+		this.resumeAttempts = resumeAttempts;
+	}
+
+	/**
+	 * Whether the last bytes on the share are compared with the source
+	 * before an upload is resumed.
+	 * 
+	 * @return true if resumed uploads are verified
+	 */
+	public boolean isVerifyResume() {
+		return verifyResume;
+	}
+
+	/**
+	 * Sets whether resumed uploads are verified.
+	 * 
+	 * @param verifyResume
+	 *            true if resumed uploads should be verified
+	 */
+	public void setVerifyResume(boolean verifyResume) {
+		this.verifyResume = verifyResume;
+	}
+
+	/**
+	 * Gets how often a failed transfer is tried again.
+	 * 
+	 * @return the number of retries
+	 */
+	public int getRetries() {
+		return retries;
+	}
+
+	/**
+	 * Sets how often a failed transfer is tried again.
+	 * 
+	 * @param retries
+	 *            the number of retries
+	 */
+	public void setRetries(int retries) {
+		this.retries = retries;
+	}
+
+	/**
+	 * Gets the delay before the first retry, which doubles with every
+	 * further retry.
+	 * 
+	 * @return the delay in milliseconds
+	 */
+	public int getRetryDelay() {
+		return retryDelay > 0 ? retryDelay : DEFAULT_RETRY_DELAY;
+	}
+
+	/**
+	 * Sets the delay before the first retry.
+	 * 
+	 * @param retryDelay
+	 *            the delay in milliseconds
+	 */
+	public void setRetryDelay(int retryDelay) {
+		this.retryDelay = retryDelay;
+	}
+
+	/**
+	 * Gets the random variation of the retry delay.
+	 * 
+	 * @return the jitter in percent
+	 */
+	public int getRetryJitter() {
+		return retryJitter;
+	}
+
+	/**
+	 * Sets the random variation of the retry delay.
+	 * 
+	 * @param retryJitter
+	 *            the jitter in percent
+	 */
+	public void setRetryJitter(int retryJitter) {
+		this.retryJitter = retryJitter;
+	}
+
+	/**
+	 * Gets the retry policy for transfers to this share.
+	 * 
+	 * @return the retry policy
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return new RetryPolicy(retries, getRetryDelay(), retryJitter);
+	}
+
+	/**
+	 * Gets the number of consecutive failures after which the remaining
+	 * transfers to this share fail fast.
+	 * 
+	 * @return the threshold, 0 if transfers never fail fast
+	 */
+	public int getCircuitBreakerThreshold() {
+		return circuitBreakerThreshold;
+	}
+
+	/**
+	 * Sets the number of consecutive failures after which the remaining
+	 * transfers to this share fail fast.
+	 * 
+	 * @param circuitBreakerThreshold
+	 *            the threshold, 0 to never fail fast
+	 */
+	public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+		this.circuitBreakerThreshold = circuitBreakerThreshold;
+	}
+
+	/**
+	 * Whether files relayed from a build node through the master are
+	 * compressed on the node and decompressed on the master.
+	 * 
+	 * @return true if the transfer is compressed
+	 */
+	public boolean isCompressTransfer() {
+		return compressTransfer;
+	}
+
+	/**
+	 * Sets whether files relayed through the master are compressed on the
+	 * way.
+	 * 
+	 * @param compressTransfer
+	 *            true if the transfer should be compressed
+	 */
+	public void setCompressTransfer(boolean compressTransfer) {
+		this.compressTransfer = compressTransfer;
+	}
+
+	/**
+	 * Gets the most KiB per second written to the share.
+	 * 
+	 * @return the bandwidth limit, 0 for no limit
+	 */
+	public int getBandwidthLimit() {
+		return bandwidthLimit;
+	}
+
+	/**
+	 * Sets the most KiB per second written to the share.
+	 * 
+	 * @param bandwidthLimit
+	 *            the bandwidth limit, 0 for no limit
+	 */
+	public void setBandwidthLimit(int bandwidthLimit) {
+		this.bandwidthLimit = bandwidthLimit;
+	}
+
+	/**
+	 * Gets the times of day the bandwidth limit applies.
+	 * 
+	 * @return comma separated windows like "08:00-18:00", empty for always
+	 */
+	public String getBandwidthSchedule() {
+		return bandwidthSchedule;
+	}
+
+	/**
+	 * Sets the times of day the bandwidth limit applies.
+	 * 
+	 * @param bandwidthSchedule
+	 *            comma separated windows like "08:00-18:00", empty for always
+	 */
+	public void setBandwidthSchedule(String bandwidthSchedule) {
+		this.bandwidthSchedule = bandwidthSchedule;
+	}
+
+	/**
+	 * Gets the number of builds which may publish to the share at once.
+	 * 
+	 * @return the number of publishes, 0 for any number
+	 */
+	public int getMaxPublishes() {
+		return maxPublishes;
+	}
+
+	/**
+	 * Sets the number of builds which may publish to the share at once.
+	 * 
+	 * @param maxPublishes
+	 *            the number of publishes, 0 for any number
+	 */
+	public void setMaxPublishes(int maxPublishes) {
+		this.maxPublishes = maxPublishes;
+	}
+
+	/**
+	 * Gets the WINS server resolving the server name.
+	 * 
+	 * @return the address of the WINS server, empty to resolve the name
+	 *         through the OS
+	 */
+	public String getWinsServer() {
+		return winsServer;
+	}
+
+	/**
+	 * Sets the WINS server resolving the server name.
+	 * 
+	 * @param winsServer
+	 *            the address of the WINS server
+	 */
+	public void setWinsServer(String winsServer) {
+		this.winsServer = winsServer;
+	}
+
+	/**
+	 * Gets the socket buffer size.
+	 * 
+	 * @return the buffer size in KiB, 0 for the jcifs default
+	 */
+	public int getSocketBufferSize() {
+		return socketBufferSize;
+	}
+
+	/**
+	 * Sets the socket buffer size.
+	 * 
+	 * @param socketBufferSize
+	 *            the buffer size in KiB, 0 for the jcifs default
+	 */
+	public void setSocketBufferSize(int socketBufferSize) {
+		this.socketBufferSize = socketBufferSize;
+	}
+
+	/**
+	 * Gets the number of requests in flight per connection.
+	 * 
+	 * @return the number of requests, 0 for the jcifs default
+	 */
+	public int getMaxMux() {
+		return maxMux;
+	}
+
+	/**
+	 * Sets the number of requests in flight per connection.
+	 * 
+	 * @param maxMux
+	 *            the number of requests, 0 for the jcifs default
+	 */
+	public void setMaxMux(int maxMux) {
+		this.maxMux = maxMux;
+	}
+
+	/**
+	 * Checks whether SMB messages are signed.
+	 * 
+	 * @return true if messages are signed
+	 */
+	public boolean isSigning() {
+		return signing;
+	}
+
+	/**
+	 * Sets whether SMB messages are signed.
+	 * 
+	 * @param signing
+	 *            true if messages should be signed
+	 */
+	public void setSigning(boolean signing) {
+		this.signing = signing;
+	}
+
+	/**
+	 * Gets the SMB protocol used to talk to the share.
+	 * 
+	 * @return {@link #SMB1} or {@link #SMB2}
+	 */
+	public String getProtocol() {
+		return SMB2.equals(protocol) ? SMB2 : SMB1;
+	}
+
+	/**
+	 * Sets the SMB protocol used to talk to the share.
+	 * 
+	 * @param protocol
+	 *            {@link #SMB1} or {@link #SMB2}
+	 */
+	public void setProtocol(String protocol) {
+		this.protocol = protocol;
+	}
+
 	/**
 	 * Gets the FULL URL for the share including escaped password.
 	 * 
@@ -343,6 +906,123 @@ public class CIFSShare {
 		return url.toString();
 	}
 
+	/**
+	 * Gets the URL of the share without any login information, which is
+	 * passed separately by the {@link ShareSession}.
+	 * 
+	 * @return the URL of the share
+	 */
+	String getShareUrl() {
+		return getShareUrl(server);
+	}
+
+	/**
+	 * Gets the URL of the share on the server with the given name or
+	 * address, without any login information.
+	 * 
+	 * @param host
+	 *            the name or address of the server
+	 * @return the URL of the share
+	 */
+	String getShareUrl(String host) {
+		StringBuffer url = new StringBuffer("smb://");
+		url.append(host);
+		if (port > 0 && port != DEFAULT_SMB_PORT) {
+			url.append(":" + port);
+		}
+		url.append("/");
+		if (dir != null && dir.length() > 0) {
+			url.append(dir);
+			if (!dir.endsWith("/")) {
+				url.append("/");
+			}
+		}
+		return url.toString();
+	}
+
+	/**
+	 * Gets the key identifying the session for this share, made of the
+	 * location, the user and a digest of the password and the connection
+	 * settings, so the key can be logged or sent to build nodes without
+	 * revealing the password, and a share saved with other settings does not
+	 * reuse a session connected with the old ones.
+	 * 
+	 * @return the session key
+	 */
+	String getSessionKey() {
+		if (sessionKey == null) {
+			sessionKey = getUrl(false)
+					+ "#"
+					+ digest(password + "\n" + getProtocol() + "\n" + timeOut
+							+ "\n" + signing + "\n" + Util.fixNull(winsServer)
+							+ "\n" + socketBufferSize + "\n" + maxMux);
+		}
+		return sessionKey;
+	}
+
+	private static String digest(String value) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return Util.toHexString(digest.digest(String.valueOf(value)
+					.getBytes("UTF-8")));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Makes the uploads from this copy of the share use the master's
+	 * bandwidth limits, see {@link BandwidthLimiter#connect}.
+	 * 
+	 * @param tokens
+	 *            the master's buckets, null to use the local ones
+	 */
+	void setBandwidthTokens(BandwidthLimiter.Tokens tokens) {
+		this.bandwidthTokens = tokens;
+	}
+
+	/**
+	 * Gets the shared session for this share.
+	 * 
+	 * @return the session
+	 */
+	ShareSession session() {
+		return ShareSession.of(this);
+	}
+
+	/**
+	 * Gets the storage holding the files of this share. That is the share
+	 * itself, unless {@link LocalStorage} was enabled to stand in for it.
+	 * Writes are throttled if the bandwidth is limited.
+	 * 
+	 * @return the storage
+	 */
+	/**
+	 * The SMB2 client needs Java 8, while the rest of the plugin runs on
+	 * Java 6. Its classes are only loaded once a share uses {@link #SMB2}.
+	 * 
+	 * @return whether this JVM can run the SMB2 client
+	 */
+	static boolean isSmb2Supported() {
+		String version = System.getProperty("java.specification.version");
+		return !version.startsWith("1.") || version.compareTo("1.8") >= 0;
+	}
+
+	Storage storage() {
+		Storage storage = LocalStorage.of(this);
+		if (storage == null) {
+			storage = SMB2.equals(getProtocol()) ? new Smb2Storage(Smb2Session
+					.of(this)) : new SmbStorage(session());
+		}
+		if (bandwidthLimit > 0) {
+			storage = new ThrottledStorage(storage, BandwidthLimiter.of(this),
+					bandwidthTokens);
+		}
+		return storage;
+	}
+
 	/**
 	 * Gets the display safe (no password) URL for the share.
 	 * 
@@ -354,50 +1034,30 @@ public class CIFSShare {
 
 	/**
 	 * Uploads a file (or multiple files) to the share defined by this object.
+	 * The file content is read on the master and written to the share from
+	 * there.
 	 */
 	public int upload(FilePath filePath, String destDir,
 			Map<String, String> envVars, PrintStream logger)
-			throws IOException, InterruptedException {		
+			throws IOException, InterruptedException {
 		int uploadCount = 0;
 		if (filePath.isDirectory()) {
-			FilePath[] subfiles = filePath.list("**/*");
-			if (subfiles != null) {
-				for (int i = 0; i < subfiles.length; i++) {
-					uploadCount += 
-						upload(subfiles[i], destDir, envVars, logger);
+			FileWalker walker = new FileWalker(filePath, "**/*");
+			walker.start();
+			try {
+				for (List<PlannedFile> subfiles = walker.next(); subfiles != null; subfiles = walker
+						.next()) {
+					for (PlannedFile subfile : subfiles) {
+						uploadCount += upload(subfile.getFilePath(), destDir,
+								envVars, logger);
+					}
 				}
+			} finally {
+				walker.close();
 			}
 		} else {
 			try {
-				String localfilename = filePath.getName();
-
-				if (!destDir.endsWith("/"))
-					destDir += "/";
-
-				SmbFile remoteFile = null;
-				if(destDir.equals("/")) {
-					remoteFile = new SmbFile(
-							getUrl(true),
-							localfilename);
-				} else {
-					remoteFile = new SmbFile(
-							new SmbFile(
-								getUrl(true), destDir),
-							localfilename);
-
-				}
-
-				InputStream in = filePath.read();
-				OutputStream out = remoteFile.getOutputStream();
-			
-				// TODO: should make the buffer size a parameter or something
-				byte[] data = new byte[8192];
-				int read = 0;
-				while ((read = in.read(data)) > 0) {
-					out.write(data, 0, read);
-				}
-				out.close();
-				in.close();
+				uploadFile(filePath, destDir);
 				uploadCount = 1;
 			} catch(IOException ex) {
 				logger.println("Error uploading " + filePath.toString() + " - " + ex.getMessage());
@@ -406,6 +1066,292 @@ public class CIFSShare {
 		return uploadCount;
 	}
 
+	/**
+	 * Uploads a single file to the share, reading its content on the master.
+	 * Unlike {@link #upload(FilePath, String, Map, PrintStream)} errors are
+	 * not logged but thrown to the caller.
+	 * 
+	 * @param filePath
+	 *            the file to upload
+	 * @param destDir
+	 *            the directory on the share to upload to
+	 * @throws IOException
+	 *             if the file could not be uploaded
+	 */
+	public void uploadFile(FilePath filePath, String destDir)
+			throws IOException, InterruptedException {
+		uploadFile(filePath, destDir, -1, 0);
+	}
+
+	/**
+	 * Uploads a single file with already known attributes to the share,
+	 * reading its content on the master. Knowing the length lets a broken
+	 * upload resume and check the file is complete.
+	 * 
+	 * @param length
+	 *            the size of the file in bytes, or -1 if unknown
+	 * @param lastModified
+	 *            the last modification time, or 0 if unknown
+	 */
+	public void uploadFile(FilePath filePath, String destDir, long length,
+			long lastModified) throws IOException, InterruptedException {
+		if (!filePath.isRemote()) {
+			// the file is on the master anyway, read it directly
+			filePath.act(new NodeUploader(this, destDir, null));
+			return;
+		}
+		write(UploadSource.of(filePath, length, lastModified,
+				compressTransfer), destDir);
+	}
+
+	/**
+	 * Uploads a single file to the share from the node the file lives on.
+	 * The share is contacted directly by that node, so the file content never
+	 * passes through the master.
+	 * 
+	 * @param filePath
+	 *            the file to upload
+	 * @param destDir
+	 *            the directory on the share to upload to
+	 * @throws IOException
+	 *             if the file could not be uploaded
+	 */
+	public void uploadFileFromNode(FilePath filePath, String destDir)
+			throws IOException, InterruptedException {
+		filePath.act(new NodeUploader(this, destDir, BandwidthLimiter.export(
+				filePath, Collections.singletonList(this))));
+	}
+
+	/**
+	 * Uploads a local file to the share. Files of at least the chunk
+	 * threshold are split into ranges which are written concurrently.
+	 */
+	void uploadFile(File file, String destDir) throws IOException,
+			InterruptedException {
+		if (chunkThreshold > 0
+				&& file.length() >= chunkThreshold * 1024L * 1024L) {
+			new ChunkedUploader(this, file, destDir).upload();
+			return;
+		}
+		write(UploadSource.of(file), destDir);
+	}
+
+	/**
+	 * Writes a file to the destination directory on the share. If the
+	 * transfer breaks down and resuming is enabled, the upload waits for the
+	 * retry delay and continues where the share stopped receiving data,
+	 * optionally after checking that the last bytes on the share match the
+	 * source.
+	 */
+	void write(UploadSource source, String destDir) throws IOException,
+			InterruptedException {
+		long length = source.getLength();
+		long offset = 0;
+		Storage storage = storage();
+		String path = getRemotePath(destDir, source.getName());
+		for (int attempt = 0;; attempt++) {
+			InputStream in = source.open(offset);
+			try {
+				OutputStream out = offset == 0 ? storage.create(path)
+						: storage.append(path);
+				boolean written = false;
+				try {
+					copy(in, out, length < 0 ? -1 : length - offset);
+					written = true;
+				} finally {
+					try {
+						out.close();
+					} catch (IOException e) {
+						if (written) {
+							throw e;
+						}
+					}
+				}
+				return;
+			} catch (IOException e) {
+				if (attempt >= resumeAttempts) {
+					throw e;
+				}
+				storage.reset(e);
+			} finally {
+				in.close();
+			}
+			// give the share time to recover before resuming
+			Thread.sleep(getRetryPolicy().getDelay(attempt));
+			offset = getResumeOffset(storage, path, source);
+		}
+	}
+
+	/**
+	 * Works out where an interrupted upload can continue: at the number of
+	 * bytes the share received, or at the start if the remote file doesn't
+	 * look like a prefix of the source.
+	 */
+	private long getResumeOffset(Storage storage, String path,
+			UploadSource source) throws IOException, InterruptedException {
+		if (!storage.exists(path)) {
+			return 0;
+		}
+		long committed = storage.length(path);
+		if (source.getLength() >= 0 && committed > source.getLength()) {
+			return 0;
+		}
+		if (!verifyResume || committed == 0) {
+			return committed;
+		}
+
+		int tail = (int) Math.min(RESUME_CHECK_SIZE, committed);
+		byte[] remoteTail = new byte[tail];
+		Storage.RandomAccess remote = storage.openRandom(path);
+		try {
+			remote.seek(committed - tail);
+			readFully(remote, remoteTail);
+		} finally {
+			remote.close();
+		}
+		byte[] localTail = new byte[tail];
+		InputStream in = source.open(committed - tail);
+		try {
+			for (int done = 0; done < tail;) {
+				int read = in.read(localTail, done, tail - done);
+				if (read < 0) {
+					return 0;
+				}
+				done += read;
+			}
+		} finally {
+			in.close();
+		}
+		return Arrays.equals(remoteTail, localTail) ? committed : 0;
+	}
+
+	private static void readFully(Storage.RandomAccess file, byte[] data)
+			throws IOException {
+		for (int done = 0; done < data.length;) {
+			int read = file.read(data, done, data.length - done);
+			if (read < 0) {
+				throw new IOException("Unexpected end of remote file");
+			}
+			done += read;
+		}
+	}
+
+	/**
+	 * Writes the content of the stream to a file with the given name in the
+	 * destination directory on the share.
+	 */
+	public void write(InputStream in, String destDir, String name)
+			throws IOException {
+		write(in, destDir, name, -1);
+	}
+
+	/**
+	 * Writes the content of the stream to a file with the given name in the
+	 * destination directory on the share.
+	 * 
+	 * @param length
+	 *            the number of bytes in the stream, or -1 if unknown
+	 */
+	public void write(InputStream in, String destDir, String name,
+			long length) throws IOException {
+		OutputStream out = create(destDir, name);
+		try {
+			copy(in, out, length);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Creates a file with the given name in the destination directory on the
+	 * share, or truncates it if it exists, and opens it for writing.
+	 */
+	OutputStream create(String destDir, String name) throws IOException {
+		return storage().create(getRemotePath(destDir, name));
+	}
+
+	/**
+	 * Gets the path of a file with the given name in the destination
+	 * directory on the share.
+	 */
+	static String getRemotePath(String destDir, String name) {
+		if (!destDir.endsWith("/"))
+			destDir += "/";
+
+		if(destDir.equals("/")) {
+			return name;
+		}
+		return destDir + name;
+	}
+
+	/**
+	 * Copies a stream using a pooled buffer of the configured size, or of the
+	 * stream length if that is smaller. In adaptive mode the buffer is doubled
+	 * as long as the larger buffer gives a better throughput.
+	 */
+	private void copy(InputStream in, OutputStream out, long length)
+			throws IOException {
+		int size = getBufferSize() * 1024;
+		if (length > 0 && length < size) {
+			size = (int) length;
+		}
+		byte[] data = BufferPool.acquire(size);
+		try {
+			boolean growing = adaptiveBuffer;
+			double lastRate = 0;
+			long remaining = length;
+			int read = 0;
+			long start = System.nanoTime();
+			while ((read = in.read(data)) > 0) {
+				out.write(data, 0, read);
+				remaining -= read;
+				if (growing && read == data.length) {
+					long now = System.nanoTime();
+					double rate = read / (double) Math.max(now - start, 1);
+					start = now;
+					if (rate < lastRate * 1.1) {
+						// a larger buffer didn't help, keep the current one
+						growing = false;
+					} else if (data.length < BufferPool.MAX_SIZE
+							&& (length < 0 || remaining > data.length)) {
+						int grown = data.length * 2;
+						BufferPool.release(data);
+						data = BufferPool.acquire(grown);
+					}
+					lastRate = rate;
+				}
+			}
+		} finally {
+			BufferPool.release(data);
+		}
+	}
+
+	/**
+	 * Runs an upload on the node holding the files, so the file content never
+	 * passes through the master.
+	 */
+	private static final class NodeUploader implements FileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final CIFSShare share;
+		private final String destDir;
+		private final BandwidthLimiter.Tokens tokens;
+
+		NodeUploader(CIFSShare share, String destDir,
+				BandwidthLimiter.Tokens tokens) {
+			this.share = share;
+			this.destDir = destDir;
+			this.tokens = tokens;
+		}
+
+		public Void invoke(File f, VirtualChannel channel)
+				throws IOException, InterruptedException {
+			BandwidthLimiter.connect(tokens, Collections.singletonList(share));
+			share.uploadFile(f, destDir);
+			return null;
+		}
+	}
+
 	/**
 	 * Mkdirs.
 	 * 
@@ -420,18 +1366,133 @@ public class CIFSShare {
 	 *             Signals that an I/O exception has occurred.
 	 */
 	public void mkdirs(String filePath, PrintStream logger) throws IOException {
-		SmbFile current = new SmbFile(new SmbFile(getUrl()), filePath);
-		if (!current.exists()) {
+		Storage storage = storage();
+		if (!storage.exists(filePath)) {
 			logger.println("creating " + getDisplayUrl() + filePath);
-			current.mkdirs();
+			try {
+				storage.mkdirs(filePath);
+			} catch (IOException e) {
+				// another upload thread may have created it in the meantime
+				if (!storage.exists(filePath)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates a single directory whose parent is known to exist, without
+	 * checking whether it exists first.
+	 * 
+	 * @param filePath
+	 *            the directory path
+	 * @param logger
+	 *            the logger
+	 */
+	public void mkdir(String filePath, PrintStream logger) throws IOException {
+		Storage storage = storage();
+		logger.println("creating " + getDisplayUrl() + filePath);
+		try {
+			storage.mkdir(filePath);
+		} catch (IOException e) {
+			// another upload thread may have created it in the meantime
+			if (!storage.exists(filePath)) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Checks whether a file or directory exists on the share.
+	 * 
+	 * @param filePath
+	 *            the path relative to the share
+	 * @return true if it exists
+	 */
+	public boolean exists(String filePath) throws IOException {
+		return storage().exists(filePath);
+	}
+
+	/**
+	 * Lists the content of a directory with a single request. The attributes
+	 * of the returned files come with the listing, so no further requests
+	 * are needed to look at them.
+	 * 
+	 * @param filePath
+	 *            the directory path relative to the share
+	 * @return the files and directories in the directory, empty if the
+	 *         directory does not exist
+	 */
+	public List<RemoteFile> list(String filePath) throws IOException {
+		return storage().list(filePath);
+	}
+
+	/**
+	 * Sets the last modification time of a file on the share.
+	 * 
+	 * @param destDir
+	 *            the directory of the file relative to the share
+	 * @param name
+	 *            the name of the file
+	 * @param time
+	 *            the modification time in milliseconds since the epoch
+	 */
+	public void setLastModified(String destDir, String name, long time)
+			throws IOException {
+		if (destDir.length() > 0 && !destDir.endsWith("/")) {
+			destDir += "/";
 		}
+		storage().setLastModified(destDir + name, time);
+	}
+
+	/**
+	 * Opens a file on the share for reading.
+	 * 
+	 * @param filePath
+	 *            the file path relative to the share
+	 * @return the content of the file, or null if it does not exist
+	 */
+	public InputStream read(String filePath) throws IOException {
+		Storage storage = storage();
+		if (!storage.exists(filePath)) {
+			return null;
+		}
+		return storage.open(filePath);
+	}
+
+	/**
+	 * Renames a file on the share, replacing the target if it exists. The
+	 * target is deleted before the rename, so neither exists for a moment.
+	 * 
+	 * @param from
+	 *            the current path relative to the share
+	 * @param to
+	 *            the new path relative to the share
+	 */
+	public void rename(String from, String to) throws IOException {
+		Storage storage = storage();
+		if (storage.exists(to)) {
+			storage.delete(to);
+		}
+		storage.rename(from, to);
+	}
+
+	/**
+	 * Deletes a single file or empty directory from the share.
+	 * 
+	 * @param filePath
+	 *            the path relative to the share, with a trailing slash for a
+	 *            directory
+	 */
+	public void remove(String filePath) throws IOException {
+		storage().delete(filePath);
 	}
 
 	public void delete(String filePath, PrintStream logger) throws IOException {
-		SmbFile current = new SmbFile(new SmbFile(getUrl()), filePath);
-		if(current.exists()) {
+		Storage storage = storage();
+		if(storage.exists(filePath)) {
 			logger.println("deleting " + getDisplayUrl() + filePath);
-			current.delete();
+			storage.delete(filePath);
 
 		}
 	}
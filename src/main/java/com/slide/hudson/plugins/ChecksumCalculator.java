@@ -0,0 +1,137 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package com.slide.hudson.plugins;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * Computes the {@link Manifest.Record} of a list of files on the node the
+ * files live on, using one thread per processor.
+ * </p>
+ */
+public class ChecksumCalculator implements
+		FileCallable<Map<String, Manifest.Record>> {
+	private static final long serialVersionUID = 1L;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final List<String> paths;
+
+	/**
+	 * @param paths
+	 *            the absolute paths of the files on the node, files which
+	 *            don't exist anymore are left out of the result
+	 */
+	public ChecksumCalculator(List<String> paths) {
+		this.paths = new ArrayList<String>(paths);
+	}
+
+	public Map<String, Manifest.Record> invoke(File f, VirtualChannel channel)
+			throws IOException, InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime
+				.getRuntime().availableProcessors());
+		try {
+			Map<String, Future<Manifest.Record>> results = new HashMap<String, Future<Manifest.Record>>();
+			for (final String path : paths) {
+				results.put(path, executor
+						.submit(new Callable<Manifest.Record>() {
+							public Manifest.Record call() throws IOException {
+								File file = new File(path);
+								// left out if deleted since it was planned
+								return file.isFile() ? checksum(file) : null;
+							}
+						}));
+			}
+
+			Map<String, Manifest.Record> records = new HashMap<String, Manifest.Record>();
+			for (Map.Entry<String, Future<Manifest.Record>> result : results
+					.entrySet()) {
+				try {
+					Manifest.Record record = result.getValue().get();
+					if (record != null) {
+						records.put(result.getKey(), record);
+					}
+				} catch (ExecutionException e) {
+					IOException ioe = new IOException(
+							"Could not compute checksum of " + result.getKey());
+					ioe.initCause(e.getCause());
+					throw ioe;
+				}
+			}
+			return records;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Computes the size and SHA-256 checksum of a local file.
+	 */
+	public static Manifest.Record checksum(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 is not available");
+		}
+
+		long length = 0;
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] data = new byte[65536];
+			int read;
+			while ((read = in.read(data)) > 0) {
+				digest.update(data, 0, read);
+				length += read;
+			}
+		} finally {
+			in.close();
+		}
+
+		byte[] hash = digest.digest();
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+		}
+		return new Manifest.Record(new String(hex), length);
+	}
+}
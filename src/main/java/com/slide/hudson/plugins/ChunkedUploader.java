@@ -0,0 +1,182 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package com.slide.hudson.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * Uploads a large local file by splitting it into ranges which are written
+ * concurrently, each through its own handle on the remote file. The ranges
+ * of all uploads in this JVM share a few threads, besides the thread of the
+ * upload itself.
+ * </p>
+ */
+public class ChunkedUploader {
+	/** The number of ranges written in the background at once. */
+	private static final int THREADS = 8;
+
+	private static final ExecutorService RANGES = Executors.newFixedThreadPool(
+			THREADS, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "CIFS chunked upload");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final CIFSShare share;
+	private final File file;
+	private final Storage storage;
+	private final String path;
+
+	public ChunkedUploader(CIFSShare share, File file, String destDir) {
+		this.share = share;
+		this.file = file;
+		this.storage = share.storage();
+		this.path = CIFSShare.getRemotePath(destDir, file.getName());
+	}
+
+	/**
+	 * Uploads the file and checks that its ranges add up to its length.
+	 * 
+	 * @throws IOException
+	 *             if a range could not be written or the ranges written do
+	 *             not add up to the length of the file
+	 */
+	public void upload() throws IOException, InterruptedException {
+		final long length = file.length();
+		int chunks = share.getChunks();
+		long chunkSize = (length + chunks - 1) / chunks;
+
+		// create the file with its final size, so every range can be
+		// written independently
+		Storage.RandomAccess remote = storage.openRandom(path);
+		try {
+			remote.setLength(length);
+		} finally {
+			remote.close();
+		}
+
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		long written = 0;
+		try {
+			// the first range is written by this thread, the others in the
+			// background
+			for (long offset = chunkSize; offset < length; offset += chunkSize) {
+				results.add(RANGES.submit(new Range(offset, Math.min(offset
+						+ chunkSize, length))));
+			}
+			written += new Range(0, Math.min(chunkSize, length)).call();
+			for (Future<Long> result : results) {
+				try {
+					written += result.get();
+				} catch (ExecutionException e) {
+					IOException ioe = new IOException(e.getCause()
+							.getMessage());
+					ioe.initCause(e.getCause());
+					throw ioe;
+				}
+			}
+		} finally {
+			for (Future<Long> result : results) {
+				result.cancel(true);
+			}
+		}
+
+		if (written != length) {
+			throw new IOException("Uploaded " + written
+					+ " bytes instead of " + length);
+		}
+	}
+
+	/**
+	 * Writes a range of the file, again if the connection broke down.
+	 */
+	private class Range implements Callable<Long> {
+		private final long start;
+		private final long end;
+
+		Range(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		public Long call() throws IOException {
+			for (int attempt = 0;; attempt++) {
+				try {
+					return writeRange(start, end);
+				} catch (IOException e) {
+					if (attempt >= share.getResumeAttempts()) {
+						throw e;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	private long writeRange(long start, long end) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			Storage.RandomAccess out = storage.openRandom(path);
+			try {
+				in.seek(start);
+				out.seek(start);
+				byte[] data = BufferPool.acquire(share.getBufferSize() * 1024);
+				long position = start;
+				try {
+					while (position < end) {
+						int read = in.read(data, 0, (int) Math.min(
+								data.length, end - position));
+						if (read < 0) {
+							throw new IOException(file + " is shorter than "
+									+ end + " bytes");
+						}
+						out.write(data, 0, read);
+						position += read;
+					}
+				} finally {
+					BufferPool.release(data);
+				}
+				return position - start;
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
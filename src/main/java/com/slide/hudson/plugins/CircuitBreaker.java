@@ -0,0 +1,113 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package com.slide.hudson.plugins;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * Stops sending transfers to a share which keeps failing. After the
+ * configured number of consecutive failed attempts the breaker trips and all
+ * transfers fail immediately. Once the cool down passed a single transfer is
+ * let through; if it succeeds the breaker closes again, otherwise it trips
+ * again. If the probe neither succeeds nor fails, like when it is
+ * interrupted, it must be ended by {@link #endProbe()} so another transfer
+ * can probe.
+ * </p>
+ */
+public class CircuitBreaker {
+	/** How long a tripped breaker rejects transfers. */
+	private static final long COOL_DOWN = 60 * 1000;
+
+	private final int threshold;
+	private int failures;
+	private long openUntil;
+	private boolean probing;
+	private int trips;
+	private int rejected;
+
+	/**
+	 * @param threshold
+	 *            the number of consecutive failures after which the breaker
+	 *            trips, 0 to never trip
+	 */
+	public CircuitBreaker(int threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Checks whether a transfer may be attempted.
+	 * 
+	 * @return true if the transfer is let through as the probe of a tripped
+	 *         breaker
+	 * @throws IOException
+	 *             if the breaker is open
+	 */
+	public synchronized boolean check() throws IOException {
+		if (threshold <= 0 || failures < threshold) {
+			return false;
+		}
+		if (System.currentTimeMillis() >= openUntil && !probing) {
+			probing = true;
+			return true;
+		}
+		rejected++;
+		throw new IOException("Share is not responding, " + failures
+				+ " consecutive transfers failed");
+	}
+
+	public synchronized void success() {
+		failures = 0;
+		probing = false;
+	}
+
+	public synchronized void failure() {
+		failures++;
+		if (threshold > 0 && (probing || failures == threshold)) {
+			trips++;
+			openUntil = System.currentTimeMillis() + COOL_DOWN;
+		}
+		probing = false;
+	}
+
+	/**
+	 * Ends a probe let through by {@link #check()}, whatever its outcome.
+	 */
+	public synchronized void endProbe() {
+		probing = false;
+	}
+
+	/**
+	 * @return how often the breaker tripped
+	 */
+	public synchronized int getTrips() {
+		return trips;
+	}
+
+	/**
+	 * @return the number of transfers rejected while the breaker was open
+	 */
+	public synchronized int getRejected() {
+		return rejected;
+	}
+}
@@ -0,0 +1,205 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package com.slide.hudson.plugins;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Remembers which directories are known to exist on a share for the duration
+ * of a publish, so every directory is checked and created at most once no
+ * matter how many files are uploaded into it.
+ * </p>
+ */
+public class DirectoryCache {
+	private final CIFSShare share;
+	private final PrintStream logger;
+	private final Set<String> existing = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Map<String, Map<String, RemoteFile>> listings = new ConcurrentHashMap<String, Map<String, RemoteFile>>();
+
+	public DirectoryCache(CIFSShare share, PrintStream logger) {
+		this.share = share;
+		this.logger = logger;
+	}
+
+	/**
+	 * Creates all the given directories and their parents up front. The
+	 * existing sub directories of the root are learned from a single listing,
+	 * and below a directory this method had to create nothing can exist, so
+	 * those are created without asking the server first.
+	 * 
+	 * @param root
+	 *            the common destination directory of the directories
+	 * @param dirs
+	 *            the directories files will be uploaded to
+	 */
+	public void prepare(String root, Collection<String> dirs)
+			throws IOException {
+		root = normalize(root);
+		mkdirs(root);
+		for (RemoteFile file : getFiles(root).values()) {
+			if (file.isDirectory()) {
+				existing.add(child(root, file.getName()));
+			}
+		}
+
+		Set<String> required = new HashSet<String>();
+		for (String dir : dirs) {
+			for (dir = normalize(dir); dir.length() > 0; dir = parent(dir)) {
+				if (!required.add(dir)) {
+					break;
+				}
+			}
+		}
+		List<String> ordered = new ArrayList<String>(required);
+		Collections.sort(ordered, new Comparator<String>() {
+			public int compare(String a, String b) {
+				int diff = depth(a) - depth(b);
+				return diff != 0 ? diff : a.compareTo(b);
+			}
+		});
+
+		Set<String> created = new HashSet<String>();
+		for (String dir : ordered) {
+			if (existing.contains(dir)) {
+				continue;
+			}
+			if (created.contains(parent(dir)) || !share.exists(dir)) {
+				share.mkdir(dir, logger);
+				created.add(dir);
+				listings.put(dir, new HashMap<String, RemoteFile>());
+			}
+			existing.add(dir);
+		}
+	}
+
+	/**
+	 * Makes sure a directory exists, only contacting the server if it is not
+	 * already known to exist.
+	 * 
+	 * @param dir
+	 *            the directory path relative to the share
+	 */
+	public void mkdirs(String dir) throws IOException {
+		dir = normalize(dir);
+		if (dir.length() == 0 || existing.contains(dir)) {
+			return;
+		}
+		share.mkdirs(dir, logger);
+		for (; dir.length() > 0; dir = parent(dir)) {
+			existing.add(dir);
+		}
+	}
+
+	/**
+	 * Gets the content of a directory, listing it on the first request only.
+	 * Directories created by this cache are known to be empty and are not
+	 * listed at all.
+	 * 
+	 * @param dir
+	 *            the directory path relative to the share
+	 * @return the files in the directory keyed by name
+	 */
+	public Map<String, RemoteFile> getFiles(String dir) throws IOException {
+		dir = normalize(dir);
+		Map<String, RemoteFile> files = listings.get(dir);
+		if (files == null) {
+			synchronized (this) {
+				files = listings.get(dir);
+				if (files == null) {
+					files = new HashMap<String, RemoteFile>();
+					for (RemoteFile file : share.list(dir)) {
+						files.put(file.getName(), file);
+					}
+					listings.put(dir, files);
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Forgets a directory and everything below it, e.g. after it was
+	 * deleted.
+	 * 
+	 * @param dir
+	 *            the directory path relative to the share
+	 */
+	public void invalidate(String dir) {
+		dir = normalize(dir);
+		for (String known : new ArrayList<String>(existing)) {
+			if (dir.length() == 0 || known.equals(dir)
+					|| known.startsWith(dir + "/")) {
+				existing.remove(known);
+			}
+		}
+		for (String known : new ArrayList<String>(listings.keySet())) {
+			if (dir.length() == 0 || known.equals(dir)
+					|| known.startsWith(dir + "/")) {
+				listings.remove(known);
+			}
+		}
+	}
+
+	private static String normalize(String dir) {
+		dir = dir.replace('\\', '/');
+		while (dir.startsWith("/")) {
+			dir = dir.substring(1);
+		}
+		while (dir.endsWith("/")) {
+			dir = dir.substring(0, dir.length() - 1);
+		}
+		return dir;
+	}
+
+	private static String parent(String dir) {
+		int index = dir.lastIndexOf('/');
+		return index == -1 ? "" : dir.substring(0, index);
+	}
+
+	private static String child(String dir, String name) {
+		return dir.length() == 0 ? name : dir + "/" + name;
+	}
+
+	private static int depth(String dir) {
+		int depth = 0;
+		for (int i = 0; i < dir.length(); i++) {
+			if (dir.charAt(i) == '/') {
+				depth++;
+			}
+		}
+		return depth;
+	}
+}
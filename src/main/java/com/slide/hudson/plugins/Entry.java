@@ -59,21 +59,85 @@ public final class Entry {
      * True if files should be purged from the destination before copying, false if files should not be purged.
      */
     private boolean purge = false;
+
+    /**
+     * True if files already present on the share with the same size and modification time
+     * should not be uploaded again.
+     */
+    private boolean incremental = false;
+
+    /**
+     * True if a checksum manifest should be kept in the destination directory and only files
+     * whose checksum changed should be uploaded.
+     */
+    private boolean checksums = false;
+
+    /**
+     * True if files on the share which no longer exist in the source should be deleted, and
+     * unchanged files should not be uploaded again.
+     */
+    private boolean mirror = false;
+
+    /**
+     * True if the files should be uploaded into a staging directory next to the destination
+     * folder, which then replaces the destination folder by renaming it.
+     */
+    private boolean atomic = false;
+
+    /**
+     * True if the replaced content of the destination folder should be kept next to it when
+     * publishing atomically.
+     */
+    private boolean keepPrevious = false;
+
+    /**
+     * Format of the archive the files are bundled into (zip, tar or tar.gz), empty if the files
+     * should be uploaded one by one.
+     */
+    private String archiveFormat;
+
+    /**
+     * File name of the archive in the destination folder. May contain macros.
+     */
+    private String archiveName;
+
+    /**
+     * Compression level of the archive from 1 (fastest) to 9 (smallest), anything else for the
+     * default level.
+     */
+    private int compressionLevel;
     
     public Entry() {
     	this.filePath = null;
     	this.sourceFile = null;
     	this.flatten = false;
 	this.purge = false;
+    	this.incremental = false;
+    	this.checksums = false;
+    	this.mirror = false;
+    	this.atomic = false;
+    	this.keepPrevious = false;
+    	this.archiveFormat = null;
+    	this.archiveName = null;
+    	this.compressionLevel = 0;
     }
     
     @DataBoundConstructor
     public Entry(String filePath, String sourceFile, Boolean flatten, 
-		    Boolean purge) {    	
+		    Boolean purge, Boolean incremental, Boolean checksums,
+		    Boolean mirror, Boolean atomic, Boolean keepPrevious, String archiveFormat, String archiveName, int compressionLevel) {    	
     	this.filePath = filePath;
     	this.sourceFile = sourceFile;
     	this.flatten = flatten;
 	this.purge = purge;
+    	this.incremental = incremental != null && incremental;
+    	this.checksums = checksums != null && checksums;
+    	this.mirror = mirror != null && mirror;
+    	this.atomic = atomic != null && atomic;
+    	this.keepPrevious = keepPrevious != null && keepPrevious;
+    	this.archiveFormat = archiveFormat;
+    	this.archiveName = archiveName;
+    	this.compressionLevel = compressionLevel;
     }
     
     /**
@@ -150,4 +214,154 @@ public final class Entry {
     public void setPurge(Boolean purge) {
 	this.purge = purge;
     }
+
+    /**
+     * True if files already present on the share with the same size and modification time
+     * should be skipped.
+     * @return the incremental
+     */
+    public boolean getIncremental() {
+        return incremental;
+    }
+
+    /**
+     * True if files already present on the share with the same size and modification time
+     * should be skipped.
+     * @param incremental the incremental to set
+     */
+    public void setIncremental(Boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * True if a checksum manifest should be kept in the destination directory and only files
+     * whose checksum changed should be uploaded.
+     * @return the checksums
+     */
+    public boolean getChecksums() {
+        return checksums;
+    }
+
+    /**
+     * True if a checksum manifest should be kept in the destination directory and only files
+     * whose checksum changed should be uploaded.
+     * @param checksums the checksums to set
+     */
+    public void setChecksums(Boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    /**
+     * True if files on the share which no longer exist in the source should be deleted, and
+     * unchanged files should not be uploaded again.
+     * @return the mirror
+     */
+    public boolean getMirror() {
+        return mirror;
+    }
+
+    /**
+     * True if files on the share which no longer exist in the source should be deleted, and
+     * unchanged files should not be uploaded again.
+     * @param mirror the mirror to set
+     */
+    public void setMirror(Boolean mirror) {
+        this.mirror = mirror;
+    }
+
+    /**
+     * True if the files should be uploaded into a staging directory next to the destination
+     * folder, which then replaces the destination folder by renaming it.
+     * @return the atomic
+     */
+    public boolean getAtomic() {
+        return atomic;
+    }
+
+    /**
+     * True if the files should be uploaded into a staging directory next to the destination
+     * folder, which then replaces the destination folder by renaming it.
+     * @param atomic the atomic to set
+     */
+    public void setAtomic(Boolean atomic) {
+        this.atomic = atomic;
+    }
+
+    /**
+     * True if the replaced content of the destination folder should be kept next to it when
+     * publishing atomically.
+     * @return the keepPrevious
+     */
+    public boolean getKeepPrevious() {
+        return keepPrevious;
+    }
+
+    /**
+     * True if the replaced content of the destination folder should be kept next to it when
+     * publishing atomically.
+     * @param keepPrevious the keepPrevious to set
+     */
+    public void setKeepPrevious(Boolean keepPrevious) {
+        this.keepPrevious = keepPrevious;
+    }
+
+    /**
+     * Format of the archive the files are bundled into (zip, tar or tar.gz), empty if the files
+     * should be uploaded one by one.
+     * @return the archiveFormat
+     */
+    public String getArchiveFormat() {
+        return archiveFormat;
+    }
+
+    /**
+     * Format of the archive the files are bundled into (zip, tar or tar.gz), empty if the files
+     * should be uploaded one by one.
+     * @param archiveFormat the archiveFormat to set
+     */
+    public void setArchiveFormat(String archiveFormat) {
+        this.archiveFormat = archiveFormat;
+    }
+
+    /**
+     * True if the files should be bundled into a single archive.
+     * @return true if an archive format is set
+     */
+    public boolean isArchive() {
+        return archiveFormat != null && archiveFormat.length() > 0;
+    }
+
+    /**
+     * File name of the archive in the destination folder. May contain macros.
+     * @return the archiveName
+     */
+    public String getArchiveName() {
+        return archiveName;
+    }
+
+    /**
+     * File name of the archive in the destination folder. May contain macros.
+     * @param archiveName the archiveName to set
+     */
+    public void setArchiveName(String archiveName) {
+        this.archiveName = archiveName;
+    }
+
+    /**
+     * Compression level of the archive from 1 (fastest) to 9 (smallest), anything else for the
+     * default level.
+     * @return the compressionLevel
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Compression level of the archive from 1 (fastest) to 9 (smallest), anything else for the
+     * default level.
+     * @param compressionLevel the compressionLevel to set
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
 }
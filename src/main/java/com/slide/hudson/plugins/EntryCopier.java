@@ -23,15 +23,25 @@ THE SOFTWARE.
 
 package com.slide.hudson.plugins;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
 
-import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import hudson.FilePath;
 import hudson.Util;
 import hudson.model.AbstractBuild;
-import hudson.model.BuildListener;
+import hudson.model.TaskListener;
 
 /**
  * <p>
@@ -42,107 +52,844 @@ import hudson.model.BuildListener;
  * @author Christian Knuechel
  */
 public class EntryCopier {
-	private AbstractBuild<?, ?> build;
-	private BuildListener listener;
+	/**
+	 * Modification times closer than this are considered equal, some file
+	 * systems only store them with a two second resolution.
+	 */
+	private static final long MODIFICATION_TOLERANCE = 2000;
+
+	/**
+	 * Appended to the name of the destination directory for the hidden
+	 * directory an atomic publish uploads into.
+	 */
+	static final String STAGING_SUFFIX = ".cifs-staging";
+
+	/**
+	 * Appended to the name of the destination directory for the hidden
+	 * directory the replaced content is moved to by an atomic publish.
+	 */
+	static final String PREVIOUS_SUFFIX = ".cifs-previous";
+
+	private FilePath workspace;
+	private FilePath snapshot;
+	private TaskListener listener;
 	private Map<String, String> envVars;
-	private URI workSpaceDir;
 	private CIFSShare cifsShare;
+	private boolean uploadFromNode;
+	private TransferEngine engine;
+	private DirectoryCache directories;
+	private final List<Target> targets = new ArrayList<Target>();
+	private FanOut fanOut;
+	private final AtomicInteger skipped = new AtomicInteger();
+	private final PublishMetrics metrics = new PublishMetrics();
 
-	public EntryCopier(AbstractBuild<?, ?> build, BuildListener listener,
+	public EntryCopier(AbstractBuild<?, ?> build, TaskListener listener,
 			CIFSShare cifsShare) throws IOException, InterruptedException {
-		this.build = build;
+		this(build, listener, cifsShare, false);
+	}
+
+	/**
+	 * @param uploadFromNode
+	 *            true if the files should be sent to the share directly from
+	 *            the node the workspace lives on, false to relay them through
+	 *            the master
+	 */
+	public EntryCopier(AbstractBuild<?, ?> build, TaskListener listener,
+			CIFSShare cifsShare, boolean uploadFromNode)
+			throws IOException, InterruptedException {
+		this(build, listener, cifsShare, uploadFromNode, Collections
+				.<CIFSShare> emptyList(), new FanOut(FanOut.WAIT));
+	}
+
+	/**
+	 * Creates a copier publishing to several shares at once. Each file is
+	 * read once and written to all shares concurrently. Which files need to
+	 * be uploaded is decided by looking at the first share only, the others
+	 * are expected to hold the same files.
+	 * 
+	 * @param additionalShares
+	 *            the shares which get the same files as the first share
+	 * @param fanOut
+	 *            how the files are written to several shares
+	 */
+	public EntryCopier(AbstractBuild<?, ?> build, TaskListener listener,
+			CIFSShare cifsShare, boolean uploadFromNode,
+			List<CIFSShare> additionalShares, FanOut fanOut)
+			throws IOException, InterruptedException {
+		this(build.getWorkspace(), build.getEnvironment(listener), listener,
+				cifsShare, uploadFromNode, additionalShares, fanOut);
+	}
+
+	/**
+	 * Creates a copier for the files of a workspace, outside of a build.
+	 * 
+	 * @param envVars
+	 *            the variables the paths of the entries are expanded with
+	 */
+	EntryCopier(FilePath workspace, Map<String, String> envVars,
+			TaskListener listener, CIFSShare cifsShare,
+			boolean uploadFromNode, List<CIFSShare> additionalShares,
+			FanOut fanOut) {
+		this.workspace = workspace;
+		this.envVars = envVars;
 		this.listener = listener;
 		this.cifsShare = cifsShare;
-		envVars = build.getEnvironment(listener);
-		workSpaceDir = build.getWorkspace().toURI().normalize();
+		this.uploadFromNode = uploadFromNode;
+		this.fanOut = fanOut;
+		engine = new TransferEngine(cifsShare, additionalShares);
+		targets.add(new Target(cifsShare, listener.getLogger()));
+		for (CIFSShare share : additionalShares) {
+			targets.add(new Target(share, listener.getLogger()));
+		}
+		directories = targets.get(0).directories;
+	}
+
+	/**
+	 * Takes the source files inside the workspace from a snapshot of it,
+	 * see {@link BackgroundPublisher}. Sources outside of the workspace are
+	 * still taken from their original location.
+	 * 
+	 * @param snapshot
+	 *            the copy of the workspace
+	 */
+	public void setSnapshot(FilePath snapshot) {
+		this.snapshot = snapshot;
 	}
 
 	public int copy(Entry entry) throws IOException, InterruptedException {
 		// prepare sources
 		String expanded = Util.replaceMacro(entry.getSourceFile(), envVars);
-		FilePath[] sourceFiles = null;
-		String baseSourceDir = workSpaceDir.getPath();
+		FileWalker walker = null;
 
-		FilePath tmp = new FilePath(build.getWorkspace(), expanded);
+		FilePath base = workspace;
+		if (snapshot != null && BackgroundPublisher.isInWorkspace(expanded)) {
+			base = snapshot;
+		}
+		FilePath tmp = new FilePath(base, expanded);
 
 		if (tmp.exists() && tmp.isDirectory()) { // Directory
-			sourceFiles = tmp.list("**/*");
-			baseSourceDir = tmp.toURI().normalize().getPath();
+			walker = new FileWalker(tmp, "**/*");
 			listener.getLogger().println(
-					"Preparing to copy directory : " + baseSourceDir);
+					"Preparing to copy directory : " + tmp.getRemote());
 		} else { // Files
-			sourceFiles = build.getWorkspace().list(expanded);
-			baseSourceDir = workSpaceDir.getPath();
+			walker = new FileWalker(base, expanded);
 		}
 
-		if (sourceFiles.length == 0) { // Nothing
-			listener.getLogger().println("No file(s) found: " + expanded);
-			return 0;
+		// the files are uploaded while the rest of the tree is walked
+		walker.start();
+		try {
+			List<PlannedFile> first = next(walker);
+			if (first == null) { // Nothing
+				listener.getLogger().println("No file(s) found: " + expanded);
+				return 0;
+			}
+			return copy(entry, walker, first);
+		} finally {
+			walker.close();
 		}
+	}
 
-		int fileCount = 0;
-
+	private int copy(Entry entry, FileWalker walker, List<PlannedFile> first)
+			throws IOException, InterruptedException {
 		// prepare common destination
 		String subRoot = Util.replaceMacro(entry.getFilePath(), envVars);
 
+		if (entry.getAtomic()) {
+			String dir = subRoot;
+			while (dir.endsWith("/")) {
+				dir = dir.substring(0, dir.length() - 1);
+			}
+			if (dir.replace("/", "").length() > 0) {
+				return copyAtomic(entry, walker, first, dir);
+			}
+			listener.getLogger().println(
+					"cannot publish atomically to the root of the share, "
+							+ "publishing in place");
+		}
+
 		if(entry.getPurge()) {
-		     cifsShare.delete(subRoot, listener.getLogger());
+		     for (Target target : targets) {
+		          purge(target.share, subRoot);
+		     }
+		     invalidate(subRoot);
 		}
 
-		cifsShare.mkdirs(subRoot, listener.getLogger());
+		return copyTo(entry, walker, first, subRoot, entry.getPurge());
+	}
+
+	/**
+	 * Publishes into a staging directory next to the destination directory
+	 * and swaps it in by renaming, so readers never see a partially
+	 * published directory. The previous content is renamed aside first and
+	 * kept if the entry asks for it.
+	 */
+	private int copyAtomic(Entry entry, FileWalker walker,
+			List<PlannedFile> first, String subRoot) throws IOException,
+			InterruptedException {
+		int slash = subRoot.lastIndexOf('/');
+		String parent = subRoot.substring(0, slash + 1);
+		String name = subRoot.substring(slash + 1);
+		String staging = parent + "." + name + STAGING_SUFFIX;
+		String previous = parent + "." + name + PREVIOUS_SUFFIX;
 
-		for (FilePath sourceFile : sourceFiles) {
-			fileCount += copyFile(entry, sourceFile, subRoot, baseSourceDir);
+		int[] failedBefore = new int[targets.size()];
+		for (int i = 0; i < targets.size(); i++) {
+			// left over by a publish which failed or was aborted
+			purge(targets.get(i).share, staging);
+			failedBefore[i] = targets.get(i).failed.get();
+		}
+		invalidate(staging);
+
+		int fileCount = copyTo(entry, walker, first, staging, true);
+		invalidate(staging);
+
+		IOException failure = null;
+		for (int i = 0; i < targets.size(); i++) {
+			Target target = targets.get(i);
+			if (target.failed.get() > failedBefore[i]) {
+				listener.getLogger().println(
+						"not all files were published, keeping the current "
+								+ "content of " + target.share.getDisplayUrl()
+								+ subRoot);
+				continue;
+			}
+			try {
+				replace(target.share, subRoot, staging, previous, entry
+						.getKeepPrevious());
+			} catch (IOException e) {
+				// still try to replace the directory on the other shares
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		invalidate(subRoot);
+		if (failure != null) {
+			throw failure;
+		}
+		return fileCount;
+	}
+
+	/**
+	 * Swaps the staging directory in on a share.
+	 */
+	private void replace(CIFSShare share, String subRoot, String staging,
+			String previous, boolean keepPrevious) throws IOException,
+			InterruptedException {
+		// no need to hold the old previous version during the swap
+		purge(share, previous);
+
+		long start = System.currentTimeMillis();
+		boolean replace = share.exists(subRoot);
+		if (replace) {
+			share.rename(subRoot + "/", previous + "/");
+		}
+		try {
+			share.rename(staging + "/", subRoot + "/");
+		} catch (IOException e) {
+			if (replace) {
+				share.rename(previous + "/", subRoot + "/");
+			}
+			throw e;
+		}
+		listener.getLogger().println(
+				"replaced " + share.getDisplayUrl() + subRoot + " in "
+						+ (System.currentTimeMillis() - start) + " ms");
+
+		if (replace && !keepPrevious) {
+			purge(share, previous);
+		}
+	}
+
+	/**
+	 * Uploads the files of the entry to a destination directory, batch by
+	 * batch as they are found.
+	 * 
+	 * @param first
+	 *            the first batch of files taken from the walker
+	 * @param empty
+	 *            true if the destination directory is known to be empty, so
+	 *            there is nothing to compare or clean up
+	 */
+	private int copyTo(Entry entry, FileWalker walker,
+			List<PlannedFile> first, String subRoot, boolean empty)
+			throws IOException, InterruptedException {
+		int fileCount = 0;
+
+		if (entry.isArchive()) {
+			// the archive is written in one go, so it needs all files
+			List<PlannedFile> sourceFiles = new ArrayList<PlannedFile>(first);
+			for (List<PlannedFile> batch = next(walker); batch != null; batch = next(walker)) {
+				sourceFiles.addAll(batch);
+			}
+			List<String> targetDirs = new ArrayList<String>(sourceFiles
+					.size());
+			for (PlannedFile sourceFile : sourceFiles) {
+				targetDirs.add(getTargetDirectory(entry, sourceFile, subRoot));
+			}
+			long start = System.currentTimeMillis();
+			fileCount = copyArchive(entry, sourceFiles, subRoot, targetDirs,
+					empty);
+			metrics.addTransferTime(System.currentTimeMillis() - start);
+			listener.getLogger().println(
+					"transferred " + fileCount + " files to " + subRoot);
+			return fileCount;
+		}
+
+		int skippedBefore = skipped.get();
+		Manifest manifest = null;
+		if (entry.getChecksums()) {
+			manifest = empty ? new Manifest() : readManifest(subRoot);
+		}
+		Set<String> keep = null;
+		if (entry.getMirror()) {
+			keep = new HashSet<String>();
+		}
+		// mirroring only makes sense if unchanged files are skipped
+		boolean incremental = !empty
+				&& (entry.getIncremental() || entry.getMirror());
+
+		long start = System.currentTimeMillis();
+		TransferEngine.Run run = engine.start(listener.getLogger());
+		for (List<PlannedFile> sourceFiles = first; sourceFiles != null; sourceFiles = next(walker)) {
+			List<String> targetDirs = new ArrayList<String>(sourceFiles
+					.size());
+			for (PlannedFile sourceFile : sourceFiles) {
+				targetDirs.add(getTargetDirectory(entry, sourceFile, subRoot));
+			}
+
+			Map<String, Manifest.Record> checksums = null;
+			if (manifest != null) {
+				List<String> paths = new ArrayList<String>(sourceFiles.size());
+				for (PlannedFile sourceFile : sourceFiles) {
+					paths.add(sourceFile.getFilePath().getRemote());
+				}
+				checksums = workspace.act(
+						new ChecksumCalculator(paths));
+			}
+
+			List<String> uploadDirs = new ArrayList<String>(sourceFiles
+					.size());
+			List<TransferEngine.Transfer> transfers = new ArrayList<TransferEngine.Transfer>(
+					sourceFiles.size());
+			for (int i = 0; i < sourceFiles.size(); i++) {
+				PlannedFile sourceFile = sourceFiles.get(i);
+				String key = getManifestPath(subRoot, targetDirs.get(i),
+						sourceFile.getName());
+				if (keep != null) {
+					keep.add(key);
+				}
+				FileTransfer transfer = new FileTransfer(sourceFile,
+						targetDirs.get(i), incremental);
+				if (manifest != null) {
+					// there is no checksum if the file vanished since it was
+					// planned, its upload reports that
+					Manifest.Record record = checksums.get(sourceFile
+							.getFilePath().getRemote());
+					if (record != null && record.equals(manifest.get(key))) {
+						skipped.incrementAndGet();
+						continue;
+					}
+					// forget the old checksum in case the upload fails
+					manifest.remove(key);
+					if (record != null) {
+						transfer = new FileTransfer(sourceFile, targetDirs
+								.get(i), manifest, key, record);
+					}
+				}
+				uploadDirs.add(targetDirs.get(i));
+				transfers.add(transfer);
+			}
+			long mkdirsStart = System.currentTimeMillis();
+			for (Target target : targets) {
+				target.directories.prepare(subRoot, uploadDirs);
+			}
+			metrics.addMkdirsTime(System.currentTimeMillis() - mkdirsStart);
+			run.submit(transfers);
+		}
+		fileCount = run.await();
+		metrics.addTransferTime(System.currentTimeMillis() - start);
+
+		if (manifest != null) {
+			if (keep != null) {
+				manifest.retainAll(keep);
+			}
+			writeManifest(subRoot, manifest);
 		}
 
 		listener.getLogger().println(
 				"transferred " + fileCount + " files to " + subRoot);
+		if (keep != null && !empty) {
+			// only remove stale files once the new ones are in place
+			keep.add(Manifest.FILE_NAME);
+			keep.add(Manifest.BACKUP_NAME);
+			for (Target target : targets) {
+				purgeStale(target.share, subRoot, keep);
+			}
+			invalidate(subRoot);
+		}
+		if (incremental || (entry.getChecksums() && !empty)) {
+			listener.getLogger().println(
+					"skipped " + (skipped.get() - skippedBefore)
+							+ " unchanged files in " + subRoot);
+		}
 		return fileCount;
 	}
 
-	public int copyFile(Entry entry, FilePath sourceFile, String destDir,
-			String baseSourceDir) throws IOException, InterruptedException {
+	/**
+	 * Bundles the files into a single archive which is streamed to the
+	 * destination directory.
+	 */
+	private int copyArchive(Entry entry, List<PlannedFile> sourceFiles,
+			String subRoot, List<String> targetDirs, boolean empty)
+			throws IOException, InterruptedException {
+		String archiveName = Util.replaceMacro(entry.getArchiveName(),
+				envVars);
+		if (archiveName == null || archiveName.length() == 0) {
+			archiveName = "archive." + entry.getArchiveFormat();
+		}
+		long mkdirsStart = System.currentTimeMillis();
+		for (Target target : targets) {
+			target.directories.mkdirs(subRoot);
+		}
+		metrics.addMkdirsTime(System.currentTimeMillis() - mkdirsStart);
 
-		String subRoot = destDir;
-		cifsShare.mkdirs(subRoot, listener.getLogger());
+		List<String> names = new ArrayList<String>(sourceFiles.size());
+		for (int i = 0; i < sourceFiles.size(); i++) {
+			names.add(getManifestPath(subRoot, targetDirs.get(i),
+					sourceFiles.get(i).getName()));
+		}
 
-		// make flatten backwards compatible
-		boolean flatten = entry.getFlatten();
-		if (!flatten) {
-			if (!destDir.endsWith("/")) {
-				destDir += "/";
+		listener.getLogger().println(
+				"archiving " + sourceFiles.size() + " files to " + subRoot
+						+ "/" + archiveName);
+		long start = System.currentTimeMillis();
+		long length = 0;
+		for (PlannedFile sourceFile : sourceFiles) {
+			length += sourceFile.getLength();
+		}
+		if (uploadFromNode) {
+			List<String> paths = new ArrayList<String>(sourceFiles.size());
+			for (PlannedFile sourceFile : sourceFiles) {
+				paths.add(sourceFile.getFilePath().getRemote());
+			}
+			int count = paths.size();
+			try {
+				count = workspace.act(new ArchiveWriter.NodeArchiver(fanOut,
+						getShares(), subRoot, archiveName, entry
+								.getArchiveFormat(), entry
+								.getCompressionLevel(), paths, names,
+						BandwidthLimiter.export(workspace, getShares())));
+			} catch (FanOutException e) {
+				logFailures(subRoot + "/" + archiveName, e);
+			}
+			metrics.fileTransferred(length, System.currentTimeMillis() - start);
+			if (!empty) {
+				purgeStaleArchiveContent(entry, subRoot, archiveName);
 			}
+			return count;
+		}
+
+		List<UploadSource> sources = new ArrayList<UploadSource>(
+				sourceFiles.size());
+		for (PlannedFile sourceFile : sourceFiles) {
+			sources.add(UploadSource.of(sourceFile.getFilePath(), sourceFile
+					.getLength(), sourceFile.getLastModified(), cifsShare
+					.isCompressTransfer()));
+		}
+		OutputStream out = targets.size() == 1 ? cifsShare.create(
+				subRoot, archiveName) : fanOut.open(
+				getShares(), subRoot, archiveName);
+		int count = sources.size();
+		try {
+			count = new ArchiveWriter(entry.getArchiveFormat(), entry
+					.getCompressionLevel()).write(out, sources, names);
+		} catch (FanOutException e) {
+			logFailures(subRoot + "/" + archiveName, e);
+		}
+		metrics.fileTransferred(length, System.currentTimeMillis() - start);
+		if (!empty) {
+			purgeStaleArchiveContent(entry, subRoot, archiveName);
+		}
+		return count;
+	}
 
-			String relDir = getRelativeToCopyBaseDirectory(baseSourceDir,
-					sourceFile);
-			if (relDir.startsWith("/")) {
-				relDir = relDir.substring(1);
-			} else if(relDir.equals(".")) {
-				relDir = "";
+	/**
+	 * When mirroring into an archive, the archive is the only file which
+	 * belongs into the destination directory.
+	 */
+	private void purgeStaleArchiveContent(Entry entry, String subRoot,
+			String archiveName) throws IOException, InterruptedException {
+		if (entry.getMirror()) {
+			for (Target target : targets) {
+				purgeStale(target.share, subRoot, Collections
+						.singleton(archiveName));
 			}
+			invalidate(subRoot);
+		}
+	}
 
+	private void purge(CIFSShare share, String dir) throws IOException,
+			InterruptedException {
+		long start = System.currentTimeMillis();
+		new PurgeEngine(share, listener.getLogger()).purge(dir);
+		metrics.addPurgeTime(System.currentTimeMillis() - start);
+	}
 
-			subRoot = destDir + relDir;
-			cifsShare.mkdirs(subRoot, listener.getLogger());
+	private void purgeStale(CIFSShare share, String dir, Set<String> keep)
+			throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		new PurgeEngine(share, listener.getLogger()).purgeStale(dir, keep);
+		metrics.addPurgeTime(System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Waits for the next batch of files, the time spent waiting counts as
+	 * enumeration time.
+	 */
+	private List<PlannedFile> next(FileWalker walker) throws IOException,
+			InterruptedException {
+		long start = System.currentTimeMillis();
+		try {
+			return walker.next();
+		} finally {
+			metrics.addEnumerationTime(System.currentTimeMillis() - start);
+		}
+	}
+
+	/**
+	 * Counts and logs the shares a file didn't make it to.
+	 */
+	private void logFailures(String path, FanOutException e) {
+		for (int i = 0; i < targets.size(); i++) {
+			IOException failure = e.getFailures().get(i);
+			if (failure != null) {
+				targets.get(i).failed.incrementAndGet();
+				listener.getLogger().println(
+						"Error uploading " + path + " to "
+								+ targets.get(i).share.getDisplayUrl()
+								+ " - " + failure.getMessage());
+			}
+		}
+	}
+
+	private List<CIFSShare> getShares() {
+		return getShares(targets);
+	}
+
+	private static List<CIFSShare> getShares(List<Target> targets) {
+		List<CIFSShare> shares = new ArrayList<CIFSShare>(targets.size());
+		for (Target target : targets) {
+			shares.add(target.share);
+		}
+		return shares;
+	}
+
+	private void invalidate(String dir) {
+		for (Target target : targets) {
+			target.directories.invalidate(dir);
+		}
+	}
+
+	/**
+	 * Reads the manifest of the destination directory, or the previous one
+	 * if a publish broke off while replacing it.
+	 */
+	private Manifest readManifest(String destDir) throws IOException {
+		InputStream in = cifsShare.read(getChildPath(destDir,
+				Manifest.FILE_NAME));
+		if (in == null) {
+			in = cifsShare.read(getChildPath(destDir, Manifest.BACKUP_NAME));
+		}
+		if (in == null) {
+			return new Manifest();
+		}
+		try {
+			return Manifest.read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Replaces the manifest in the destination directory. The new manifest is
+	 * written next to the old one, which is then moved to the backup name
+	 * until the new one is renamed into place. A share can't rename over an
+	 * existing file, so there is a moment without a manifest, in which
+	 * {@link #readManifest(String)} falls back to the backup.
+	 */
+	private void writeManifest(String destDir, Manifest manifest)
+			throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		manifest.write(data);
+		String tmpName = Manifest.FILE_NAME + ".tmp";
+		String path = getChildPath(destDir, Manifest.FILE_NAME);
+		for (Target target : targets) {
+			target.share.write(new ByteArrayInputStream(data.toByteArray()),
+					destDir, tmpName);
+			if (target.share.exists(path)) {
+				target.share.rename(path, getChildPath(destDir,
+						Manifest.BACKUP_NAME));
+			}
+			target.share.rename(getChildPath(destDir, tmpName), path);
+		}
+	}
+
+	private static String getManifestPath(String destDir, String targetDir,
+			String name) {
+		String relDir = targetDir.substring(destDir.length());
+		while (relDir.startsWith("/")) {
+			relDir = relDir.substring(1);
+		}
+		return getChildPath(relDir, name);
+	}
+
+	private static String getChildPath(String dir, String name) {
+		if (dir.length() == 0) {
+			return name;
+		}
+		return dir.endsWith("/") ? dir + name : dir + "/" + name;
+	}
+
+	/**
+	 * Uploads a single file to the given shares.
+	 * 
+	 * @param pending
+	 *            the shares to upload to, the shares which received the file
+	 *            are removed
+	 */
+	private int copyFile(PlannedFile sourceFile, String targetDir,
+			boolean incremental, List<Target> pending) throws IOException,
+			InterruptedException {
+		long mkdirsStart = System.currentTimeMillis();
+		for (Target target : pending) {
+			target.directories.mkdirs(targetDir);
+		}
+		metrics.addMkdirsTime(System.currentTimeMillis() - mkdirsStart);
+
+		long lastModified = 0;
+		if (incremental) {
+			long length = sourceFile.getLength();
+			lastModified = sourceFile.getLastModified();
+			// the other shares are expected to look like the first one, but
+			// once some of them got the file it must go to the rest
+			RemoteFile remote = pending.size() < targets.size() ? null
+					: directories.getFiles(targetDir).get(sourceFile.getName());
+			if (remote != null
+					&& !remote.isDirectory()
+					&& remote.getLength() == length
+					&& Math.abs(remote.getLastModified() - lastModified) <= MODIFICATION_TOLERANCE) {
+				skipped.incrementAndGet();
+				pending.clear();
+				return 0;
+			}
 		}
 
 		// and upload the file in the root or subdir
-		return cifsShare.upload(sourceFile, subRoot, envVars, 
-				listener.getLogger());
+		FanOutException failure = null;
+		List<Target> missing = new ArrayList<Target>();
+		long start = System.currentTimeMillis();
+		try {
+			upload(sourceFile, targetDir, pending);
+			metrics.fileTransferred(sourceFile.getLength(),
+					System.currentTimeMillis() - start);
+		} catch (FanOutException e) {
+			failure = e;
+			for (int i = 0; i < pending.size(); i++) {
+				if (e.getFailures().get(i) != null) {
+					missing.add(pending.get(i));
+				}
+			}
+		}
+		if (incremental) {
+			// so the next publish recognizes the file as unchanged
+			for (Target target : pending) {
+				if (!missing.contains(target)) {
+					target.share.setLastModified(targetDir, sourceFile
+							.getName(), lastModified);
+				}
+			}
+		}
+		pending.retainAll(missing);
+		if (failure != null) {
+			throw failure;
+		}
+		return 1;
 	}
 
-	private String getRelativeToCopyBaseDirectory(String baseDir,
-			FilePath sourceFile) throws IOException, InterruptedException {
+	private void upload(PlannedFile plannedFile, String targetDir,
+			List<Target> pending) throws IOException, InterruptedException {
+		FilePath sourceFile = plannedFile.getFilePath();
+		if (pending.size() == 1) {
+			CIFSShare share = pending.get(0).share;
+			if (uploadFromNode) {
+				share.uploadFileFromNode(sourceFile, targetDir);
+			} else {
+				share.uploadFile(sourceFile, targetDir, plannedFile
+						.getLength(), plannedFile.getLastModified());
+			}
+			return;
+		}
 
-		URI sourceFileURI = sourceFile.toURI().normalize();
-		String relativeSourceFile = sourceFileURI.getPath().replaceFirst(
-				baseDir, "");
-		int lastSlashIndex = relativeSourceFile.lastIndexOf("/");
-		if (lastSlashIndex == -1) {
-			return ".";
+		List<CIFSShare> shares = getShares(pending);
+		if (uploadFromNode || !sourceFile.isRemote()) {
+			sourceFile.act(new FanOut.NodeUploader(fanOut, shares, targetDir,
+					BandwidthLimiter.export(sourceFile, shares)));
 		} else {
-			return relativeSourceFile.substring(0, lastSlashIndex);
+			fanOut.upload(UploadSource.of(sourceFile, plannedFile.getLength(),
+					plannedFile.getLastModified(), cifsShare
+							.isCompressTransfer()), shares, targetDir);
+		}
+	}
+
+	private static String getTargetDirectory(Entry entry,
+			PlannedFile sourceFile, String destDir) {
+		// make flatten backwards compatible
+		boolean flatten = entry.getFlatten();
+		if (flatten) {
+			return destDir;
+		}
+
+		if (!destDir.endsWith("/")) {
+			destDir += "/";
+		}
+
+		return destDir + sourceFile.getRelativeDir();
+	}
+
+	/**
+	 * @return the number of unchanged files which were not uploaded again
+	 */
+	public int getSkippedCount() {
+		return skipped.get();
+	}
+
+	/**
+	 * @return the performance figures collected so far
+	 */
+	public PublishMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the number of files which could not be transferred
+	 */
+	public int getFailedCount() {
+		return engine.getFailed();
+	}
+
+	/**
+	 * @return the number of files which could not be transferred to the
+	 *         given share
+	 */
+	public int getFailedCount(CIFSShare share) {
+		for (Target target : targets) {
+			if (target.share == share) {
+				return target.failed.get();
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the number of retried transfer attempts
+	 */
+	public int getRetriedCount() {
+		return engine.getRetried();
+	}
+
+	/**
+	 * @return how often the circuit breaker of the share tripped
+	 */
+	public int getTripCount() {
+		return engine.getTrips();
+	}
+
+	/**
+	 * @return the number of transfers rejected while the share was not
+	 *         responding
+	 */
+	public int getRejectedCount() {
+		return engine.getRejected();
+	}
+
+	/**
+	 * Releases the upload workers. The copier must not be used afterwards.
+	 */
+	public void close() {
+		engine.shutdown();
+	}
+
+	/**
+	 * A share the files are published to, with its own directory cache.
+	 */
+	private static final class Target {
+		final CIFSShare share;
+		final DirectoryCache directories;
+		final AtomicInteger failed = new AtomicInteger();
+
+		Target(CIFSShare share, PrintStream logger) {
+			this.share = share;
+			this.directories = new DirectoryCache(share, logger);
 		}
 	}
 
+	private class FileTransfer extends TransferEngine.Transfer {
+		/** The shares still waiting for the file. */
+		final List<Target> pending = new ArrayList<Target>(targets);
+		private final PlannedFile sourceFile;
+		private final String targetDir;
+		private final boolean incremental;
+		private final Manifest manifest;
+		private final String manifestPath;
+		private final Manifest.Record record;
+
+		FileTransfer(PlannedFile sourceFile, String targetDir,
+				boolean incremental) {
+			super(sourceFile.getFilePath().getRemote());
+			this.sourceFile = sourceFile;
+			this.targetDir = targetDir;
+			this.incremental = incremental;
+			this.manifest = null;
+			this.manifestPath = null;
+			this.record = null;
+		}
+
+		/**
+		 * Creates a transfer which adds the checksum of the file to the
+		 * manifest once it was uploaded.
+		 */
+		FileTransfer(PlannedFile sourceFile, String targetDir,
+				Manifest manifest, String manifestPath, Manifest.Record record) {
+			super(sourceFile.getFilePath().getRemote());
+			this.sourceFile = sourceFile;
+			this.targetDir = targetDir;
+			this.incremental = false;
+			this.manifest = manifest;
+			this.manifestPath = manifestPath;
+			this.record = record;
+		}
+
+		@Override
+		protected List<CIFSShare> getFailedShares() {
+			// after a failure only the shares which didn't get the file are
+			// pending
+			return getShares(pending);
+		}
+
+		@Override
+		protected void failed(Throwable cause) {
+			for (Target target : pending) {
+				target.failed.incrementAndGet();
+			}
+		}
+
+		public Integer call() throws Exception {
+			int count = copyFile(sourceFile, targetDir, incremental, pending);
+			if (manifest != null) {
+				manifest.put(manifestPath, record);
+			}
+			return count;
+		}
+	}
 }
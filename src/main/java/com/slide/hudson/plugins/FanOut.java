@@ -0,0 +1,492 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Writes the same data to several shares at once while reading it only
+ * once. The data is cut into chunks which are handed to one writer thread
+ * per share through a small queue, so the shares receive the data
+ * concurrently.
+ * </p>
+ * <p>
+ * The policy decides what happens when a share cannot keep up with the
+ * others: with {@link #WAIT} the slowest share paces the whole transfer,
+ * with {@link #DETACH} a share whose queue runs full is dropped from the
+ * transfer and gets the file uploaded on its own afterwards, which reads the
+ * file a second time but doesn't hold up the faster shares.
+ * </p>
+ * <p>
+ * A share failing doesn't stop the transfer to the others, the failures are
+ * reported per share by a {@link FanOutException}.
+ * </p>
+ */
+public class FanOut implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** The slowest share paces the transfer to all shares. */
+	public static final String WAIT = "wait";
+
+	/** Shares falling behind are served separately afterwards. */
+	public static final String DETACH = "detach";
+
+	/** The number of chunks a share may fall behind the fastest share. */
+	private static final int QUEUE_CHUNKS = 16;
+
+	private static final ExecutorService WRITERS = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "CIFS fan-out writer #"
+							+ count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final String policy;
+
+	/**
+	 * @param policy
+	 *            {@link #WAIT} or {@link #DETACH}, anything else is treated
+	 *            as {@link #WAIT}
+	 */
+	public FanOut(String policy) {
+		this.policy = DETACH.equals(policy) ? DETACH : WAIT;
+	}
+
+	/**
+	 * Opens a stream writing to a file with the given name in the destination
+	 * directory on all shares. Closing the stream throws a
+	 * {@link FanOutException} if not all shares received the data. A stream
+	 * can't be read again, so with the {@link #DETACH} policy shares falling
+	 * behind fail.
+	 */
+	public Stream open(List<CIFSShare> shares, String destDir, String name) {
+		return new Stream(shares, destDir, name);
+	}
+
+	/**
+	 * Uploads a file to the destination directory on all shares, reading it
+	 * once for all shares which keep up.
+	 * 
+	 * @throws FanOutException
+	 *             if some of the shares did not receive the file
+	 * @throws IOException
+	 *             if the file could not be read
+	 */
+	public void upload(final UploadSource source, final List<CIFSShare> shares,
+			final String destDir) throws IOException, InterruptedException {
+		Stream out = open(shares, destDir, source.getName());
+		InputStream in = source.open(0);
+		List<IOException> failures;
+		try {
+			try {
+				out.transferFrom(in);
+			} finally {
+				in.close();
+			}
+			failures = out.finish();
+		} catch (IOException e) {
+			out.abort();
+			throw e;
+		}
+
+		// serve the shares which fell behind on their own
+		List<Future<Void>> retries = new ArrayList<Future<Void>>();
+		for (int i = 0; i < shares.size(); i++) {
+			if (!out.isDetached(i)) {
+				retries.add(null);
+				continue;
+			}
+			final CIFSShare share = shares.get(i);
+			retries.add(WRITERS.submit(new Callable<Void>() {
+				public Void call() throws IOException, InterruptedException {
+					share.write(source, destDir);
+					return null;
+				}
+			}));
+		}
+		boolean failed = false;
+		for (int i = 0; i < shares.size(); i++) {
+			if (retries.get(i) != null) {
+				failures.set(i, get(retries.get(i)));
+			}
+			failed |= failures.get(i) != null;
+		}
+		if (failed) {
+			throw new FanOutException(shares, failures);
+		}
+	}
+
+	private static IOException get(Future<Void> result)
+			throws InterruptedException {
+		try {
+			result.get();
+			return null;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				return (IOException) e.getCause();
+			}
+			IOException ioe = new IOException(e.getCause().getMessage());
+			ioe.initCause(e.getCause());
+			return ioe;
+		}
+	}
+
+	/**
+	 * A chunk of data shared by the writers, its buffer goes back to the
+	 * {@link BufferPool} once all writers are done with it.
+	 */
+	private static final class Chunk {
+		static final Chunk END = new Chunk(null, 0, 1);
+
+		final byte[] data;
+		final int length;
+		private final AtomicInteger users;
+
+		Chunk(byte[] data, int length, int users) {
+			this.data = data;
+			this.length = length;
+			this.users = new AtomicInteger(users);
+		}
+
+		void release() {
+			if (users.decrementAndGet() == 0 && data != null) {
+				BufferPool.release(data);
+			}
+		}
+	}
+
+	/**
+	 * An output stream writing to all shares. Data is passed on in chunks of
+	 * the buffer size of the first share.
+	 */
+	public final class Stream extends OutputStream {
+		private final List<CIFSShare> shares;
+		private final List<Writer> writers;
+		private final int chunkSize;
+		private byte[] current;
+		private int fill;
+		private boolean closed;
+
+		Stream(List<CIFSShare> shares, String destDir, String name) {
+			this.shares = new ArrayList<CIFSShare>(shares);
+			chunkSize = Math.min(shares.get(0).getBufferSize() * 1024,
+					BufferPool.MAX_SIZE);
+			writers = new ArrayList<Writer>(shares.size());
+			for (CIFSShare share : shares) {
+				Writer writer = new Writer(share, destDir, name);
+				writer.future = WRITERS.submit(writer);
+				writers.add(writer);
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (current == null) {
+					current = BufferPool.acquire(chunkSize);
+				}
+				int count = Math.min(len, current.length - fill);
+				System.arraycopy(b, off, current, fill, count);
+				fill += count;
+				off += count;
+				len -= count;
+				if (fill == current.length) {
+					dispatch();
+				}
+			}
+		}
+
+		/**
+		 * Reads the stream to its end straight into the chunk buffers.
+		 */
+		void transferFrom(InputStream in) throws IOException {
+			while (true) {
+				if (current == null) {
+					current = BufferPool.acquire(chunkSize);
+				}
+				int read = in.read(current, fill, current.length - fill);
+				if (read < 0) {
+					return;
+				}
+				fill += read;
+				if (fill == current.length) {
+					dispatch();
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			dispatch();
+		}
+
+		/**
+		 * Waits for all shares to receive the data and closes the files.
+		 * 
+		 * @throws FanOutException
+		 *             if not all shares received the data
+		 */
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			List<IOException> failures = finish();
+			for (int i = 0; i < failures.size(); i++) {
+				if (failures.get(i) == null && writers.get(i).detached) {
+					failures.set(i, new IOException(
+							"fell behind the other shares"));
+				}
+			}
+			for (IOException failure : failures) {
+				if (failure != null) {
+					throw new FanOutException(shares, failures);
+				}
+			}
+		}
+
+		/**
+		 * Waits for the writers to finish.
+		 * 
+		 * @return the failure of each share, null for the shares which
+		 *         received the data or were detached
+		 */
+		List<IOException> finish() throws IOException {
+			closed = true;
+			dispatch();
+			if (current != null) {
+				BufferPool.release(current);
+				current = null;
+			}
+			List<IOException> failures = new ArrayList<IOException>(writers
+					.size());
+			try {
+				for (Writer writer : writers) {
+					writer.queue.put(Chunk.END);
+				}
+				for (Writer writer : writers) {
+					writer.future.get();
+					failures.add(writer.failure);
+				}
+			} catch (InterruptedException e) {
+				abort();
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				// the writers catch their failures
+				throw new IllegalStateException(e.getCause());
+			}
+			return failures;
+		}
+
+		/**
+		 * Gives up on the transfer, leaving incomplete files behind.
+		 */
+		void abort() {
+			closed = true;
+			for (Writer writer : writers) {
+				writer.future.cancel(true);
+			}
+			if (current != null) {
+				BufferPool.release(current);
+				current = null;
+			}
+		}
+
+		/**
+		 * @return true if the share with the given index fell behind and
+		 *         was dropped from the transfer
+		 */
+		boolean isDetached(int index) {
+			return writers.get(index).detached;
+		}
+
+		private void dispatch() throws IOException {
+			if (fill == 0) {
+				return;
+			}
+			Chunk chunk = new Chunk(current, fill, writers.size() + 1);
+			current = null;
+			fill = 0;
+			try {
+				for (Writer writer : writers) {
+					if (!writer.offer(chunk)) {
+						chunk.release();
+					}
+				}
+			} catch (InterruptedException e) {
+				abort();
+				throw new InterruptedIOException();
+			} finally {
+				chunk.release();
+			}
+		}
+	}
+
+	/**
+	 * Writes the chunks of a single share. It keeps taking chunks after a
+	 * failure or being detached, so the other writers are never blocked.
+	 */
+	private final class Writer implements Callable<Void> {
+		private final CIFSShare share;
+		private final String destDir;
+		private final String name;
+		final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(
+				QUEUE_CHUNKS);
+		volatile IOException failure;
+		volatile boolean detached;
+		Future<Void> future;
+
+		Writer(CIFSShare share, String destDir, String name) {
+			this.share = share;
+			this.destDir = destDir;
+			this.name = name;
+		}
+
+		/**
+		 * Queues a chunk for this share.
+		 * 
+		 * @return false if the share doesn't take the chunk
+		 */
+		boolean offer(Chunk chunk) throws InterruptedException {
+			if (failure != null || detached) {
+				return false;
+			}
+			if (!DETACH.equals(policy)) {
+				queue.put(chunk);
+				return true;
+			}
+			if (!queue.offer(chunk)) {
+				detached = true;
+				return false;
+			}
+			return true;
+		}
+
+		public Void call() throws InterruptedException {
+			OutputStream out = null;
+			try {
+				out = share.create(destDir, name);
+			} catch (IOException e) {
+				failure = e;
+			}
+			try {
+				while (true) {
+					Chunk chunk = queue.take();
+					if (chunk == Chunk.END) {
+						break;
+					}
+					try {
+						if (failure == null && !detached) {
+							out.write(chunk.data, 0, chunk.length);
+						}
+					} catch (IOException e) {
+						failure = e;
+					} finally {
+						chunk.release();
+					}
+				}
+			} finally {
+				// also when the transfer was aborted by interrupting us
+				if (out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+						if (failure == null && !detached) {
+							failure = e;
+						}
+					}
+				}
+				for (Chunk chunk = queue.poll(); chunk != null; chunk = queue
+						.poll()) {
+					if (chunk != Chunk.END) {
+						chunk.release();
+					}
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Uploads a file to several shares from the node the file lives on.
+	 */
+	public static final class NodeUploader implements FileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final FanOut fanOut;
+		private final List<CIFSShare> shares;
+		private final String destDir;
+		private final BandwidthLimiter.Tokens tokens;
+
+		/**
+		 * @param tokens
+		 *            the master's bandwidth limits for the shares, see
+		 *            {@link BandwidthLimiter#export}
+		 */
+		public NodeUploader(FanOut fanOut, List<CIFSShare> shares,
+				String destDir, BandwidthLimiter.Tokens tokens) {
+			this.fanOut = fanOut;
+			this.shares = new ArrayList<CIFSShare>(shares);
+			this.destDir = destDir;
+			this.tokens = tokens;
+		}
+
+		public Void invoke(File f, VirtualChannel channel)
+				throws IOException, InterruptedException {
+			BandwidthLimiter.connect(tokens, shares);
+			fanOut.upload(UploadSource.of(f), shares, destDir);
+			return null;
+		}
+	}
+}
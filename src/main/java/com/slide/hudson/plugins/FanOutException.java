@@ -0,0 +1,72 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Signals that data written to several shares at once did not arrive on all
+ * of them. The failures are listed per share, in the order the shares were
+ * given, with null for the shares which received the data.
+ * </p>
+ */
+public class FanOutException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private final List<IOException> failures;
+
+	public FanOutException(List<CIFSShare> shares, List<IOException> failures) {
+		super(getMessage(shares, failures));
+		this.failures = new ArrayList<IOException>(failures);
+		for (IOException failure : failures) {
+			if (failure != null) {
+				initCause(failure);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return the failure of each share, null if the share received the data
+	 */
+	public List<IOException> getFailures() {
+		return failures;
+	}
+
+	private static String getMessage(List<CIFSShare> shares,
+			List<IOException> failures) {
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < failures.size(); i++) {
+			if (failures.get(i) != null) {
+				message.append(message.length() == 0 ? "" : ", ");
+				message.append(shares.get(i).getDisplayUrl()).append(": ")
+						.append(failures.get(i).getMessage());
+			}
+		}
+		return message.toString();
+	}
+}
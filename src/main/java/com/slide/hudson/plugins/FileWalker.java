@@ -0,0 +1,288 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * <p>
+ * Enumerates the files matching an Ant pattern below a directory, like
+ * {@link FilePath#list(String)}, but hands them out in batches while the
+ * directory tree is still being walked. The walk runs on the node holding
+ * the files and sends each batch to the master as soon as it is full, so the
+ * first files can be uploaded long before the last ones are found.
+ * </p>
+ * <p>
+ * The whole walk is a single call to the node. Each file comes with its
+ * relative path, size and modification time as {@link PlannedFile}, so the
+ * upload can be planned without asking the node about every file.
+ * </p>
+ * <p>
+ * Only a few batches are buffered. If the consumer falls behind, the walk
+ * waits for it, so the memory needed doesn't depend on the size of the tree.
+ * </p>
+ */
+public class FileWalker {
+	/** The number of files sent to the master at once. */
+	public static final int BATCH_SIZE = 500;
+
+	/** The number of batches buffered on the master. */
+	private static final int QUEUE_BATCHES = 4;
+
+	private static final Object END = new Object();
+
+	private final FilePath base;
+	private final String includes;
+	private final BlockingQueue<Object> batches = new ArrayBlockingQueue<Object>(
+			QUEUE_BATCHES);
+	private volatile boolean closed;
+	private Thread walker;
+	private boolean done;
+
+	/**
+	 * @param base
+	 *            the directory to walk
+	 * @param includes
+	 *            comma or whitespace separated Ant patterns of the files to
+	 *            find, relative to the base directory
+	 */
+	public FileWalker(FilePath base, String includes) {
+		this.base = base;
+		this.includes = includes;
+	}
+
+	/**
+	 * Splits the include patterns, separated by commas or whitespace like
+	 * for Ant filesets. A pattern ending with a slash includes everything
+	 * below the directory.
+	 */
+	static String[] getPatterns(String includes) {
+		List<String> list = new ArrayList<String>();
+		for (String pattern : includes.split("[,\\s]+")) {
+			pattern = pattern.replace('\\', '/');
+			if (pattern.length() == 0) {
+				continue;
+			}
+			if (pattern.endsWith("/")) {
+				pattern += "**";
+			}
+			list.add(pattern);
+		}
+		return list.toArray(new String[list.size()]);
+	}
+
+	/**
+	 * Starts walking the directory tree in the background.
+	 */
+	public void start() {
+		final Sink sink = base.getChannel().export(Sink.class, new Sink() {
+			public void add(List<PlannedFile> files) throws IOException,
+					InterruptedException {
+				while (!batches.offer(files, 1, TimeUnit.SECONDS)) {
+					if (closed) {
+						throw new IOException("File walk was cancelled");
+					}
+				}
+			}
+		});
+		walker = new Thread("CIFS file walker for " + base.getRemote()) {
+			@Override
+			public void run() {
+				Object result = END;
+				try {
+					base.act(new Walk(includes, sink));
+				} catch (Throwable t) {
+					result = t;
+				}
+				try {
+					while (!closed
+							&& !batches.offer(result, 1, TimeUnit.SECONDS)) {
+					}
+				} catch (InterruptedException e) {
+					// closed
+				}
+			}
+		};
+		walker.setDaemon(true);
+		walker.start();
+	}
+
+	/**
+	 * Waits for the next batch of files.
+	 * 
+	 * @return the files, or null once all files were returned
+	 * @throws IOException
+	 *             if the directory could not be walked
+	 */
+	@SuppressWarnings("unchecked")
+	public List<PlannedFile> next() throws IOException, InterruptedException {
+		if (done) {
+			return null;
+		}
+		Object batch = batches.take();
+		if (batch == END) {
+			done = true;
+			return null;
+		}
+		if (batch instanceof Throwable) {
+			done = true;
+			if (batch instanceof IOException) {
+				throw (IOException) batch;
+			}
+			if (batch instanceof InterruptedException) {
+				throw (InterruptedException) batch;
+			}
+			IOException ioe = new IOException("Could not list "
+					+ base.getRemote());
+			ioe.initCause((Throwable) batch);
+			throw ioe;
+		}
+
+		List<PlannedFile> files = (List<PlannedFile>) batch;
+		for (PlannedFile file : files) {
+			file.resolve(base);
+		}
+		return files;
+	}
+
+	/**
+	 * Stops the walk if it is still running.
+	 */
+	public void close() {
+		closed = true;
+		if (walker != null) {
+			walker.interrupt();
+		}
+		batches.clear();
+	}
+
+	/**
+	 * Receives the batches of files on the master.
+	 */
+	public interface Sink {
+		void add(List<PlannedFile> files) throws IOException,
+				InterruptedException;
+	}
+
+	/**
+	 * Walks the directory tree on the node the files live on.
+	 */
+	private static final class Walk implements FileCallable<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		private final String includes;
+		private final Sink sink;
+		private transient String[] patterns;
+		private transient String[] excludes;
+		private transient List<PlannedFile> batch;
+		private transient int count;
+
+		Walk(String includes, Sink sink) {
+			this.includes = includes;
+			this.sink = sink;
+		}
+
+		public Integer invoke(File f, VirtualChannel channel)
+				throws IOException, InterruptedException {
+			patterns = getPatterns(includes);
+			excludes = DirectoryScanner.getDefaultExcludes();
+			batch = new ArrayList<PlannedFile>(BATCH_SIZE);
+
+			walk(f, "");
+			if (!batch.isEmpty()) {
+				sink.add(batch);
+			}
+			return count;
+		}
+
+		private void walk(File dir, String prefix) throws IOException,
+				InterruptedException {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			File[] children = dir.listFiles();
+			if (children == null) {
+				return;
+			}
+			Arrays.sort(children);
+			for (File child : children) {
+				String path = prefix + child.getName();
+				if (child.isDirectory()) {
+					if (mayContainMatches(path) && !isExcluded(path)) {
+						walk(child, path + "/");
+					}
+				} else if (matches(path) && !isExcluded(path)) {
+					batch.add(new PlannedFile(path, child.length(), child
+							.lastModified()));
+					count++;
+					if (batch.size() >= BATCH_SIZE) {
+						sink.add(batch);
+						batch = new ArrayList<PlannedFile>(BATCH_SIZE);
+					}
+				}
+			}
+		}
+
+		private boolean matches(String path) {
+			for (String pattern : patterns) {
+				if (SelectorUtils.matchPath(pattern, path)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean mayContainMatches(String dir) {
+			for (String pattern : patterns) {
+				if (SelectorUtils.matchPatternStart(pattern, dir)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean isExcluded(String path) {
+			for (String exclude : excludes) {
+				if (SelectorUtils.matchPath(exclude, path)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Stores the files of a share in a local directory instead of on the file
+ * server. It stands in for the share when measuring how changes to the
+ * plugin affect publishing, without depending on a file server and its
+ * network.
+ * </p>
+ * <p>
+ * Every request, including every read or write call on a stream, can be
+ * delayed by a fixed latency to simulate the round trips to a remote
+ * server.
+ * </p>
+ * <p>
+ * All shares are redirected to local storage when the system property
+ * {@link #ROOT_PROPERTY} names a directory, each share to the subdirectory
+ * named after its server and share directory. The latency is set by
+ * {@link #LATENCY_PROPERTY} in milliseconds. When uploading from build
+ * nodes, the properties must be set on the nodes as well.
+ * </p>
+ */
+public class LocalStorage implements Storage {
+	/** The system property naming the directory which holds all shares. */
+	public static final String ROOT_PROPERTY = LocalStorage.class.getName()
+			+ ".root";
+
+	/** The system property holding the latency of a request in ms. */
+	public static final String LATENCY_PROPERTY = LocalStorage.class
+			.getName()
+			+ ".latency";
+
+	private final File root;
+	private final long latency;
+
+	/**
+	 * @param root
+	 *            the directory standing in for the share
+	 * @param latency
+	 *            the delay of every request in milliseconds
+	 */
+	public LocalStorage(File root, long latency) {
+		this.root = root;
+		this.latency = latency;
+	}
+
+	/**
+	 * Gets the local storage for a share if local storage was enabled by the
+	 * system properties.
+	 * 
+	 * @return the storage, or null to use the share itself
+	 */
+	static LocalStorage of(CIFSShare share) {
+		String base = System.getProperty(ROOT_PROPERTY);
+		if (base == null || base.length() == 0) {
+			return null;
+		}
+		File root = new File(base, share.getServer());
+		if (share.getDir() != null) {
+			root = new File(root, share.getDir());
+		}
+		return new LocalStorage(root, Long.getLong(LATENCY_PROPERTY, 0));
+	}
+
+	public OutputStream create(String path) throws IOException {
+		delay();
+		return delayed(new FileOutputStream(getFile(path)));
+	}
+
+	public OutputStream append(String path) throws IOException {
+		delay();
+		File file = getFile(path);
+		if (!file.isFile()) {
+			throw new FileNotFoundException(path);
+		}
+		return delayed(new FileOutputStream(file, true));
+	}
+
+	public InputStream open(String path) throws IOException {
+		delay();
+		return new FilterInputStream(new FileInputStream(getFile(path))) {
+			@Override
+			public int read() throws IOException {
+				delay();
+				return super.read();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				delay();
+				return super.read(b, off, len);
+			}
+		};
+	}
+
+	public RandomAccess openRandom(String path) throws IOException {
+		delay();
+		final RandomAccessFile file = new RandomAccessFile(getFile(path),
+				"rw");
+		return new RandomAccess() {
+			public void seek(long position) throws IOException {
+				file.seek(position);
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				delay();
+				return file.read(b, off, len);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				delay();
+				file.write(b, off, len);
+			}
+
+			public void setLength(long length) throws IOException {
+				delay();
+				file.setLength(length);
+			}
+
+			public void close() throws IOException {
+				file.close();
+			}
+		};
+	}
+
+	public boolean exists(String path) throws IOException {
+		delay();
+		return getFile(path).exists();
+	}
+
+	public long length(String path) throws IOException {
+		delay();
+		return getFile(path).length();
+	}
+
+	public void mkdir(String path) throws IOException {
+		delay();
+		if (!getFile(path).mkdir()) {
+			throw new IOException("Could not create " + path);
+		}
+	}
+
+	public void mkdirs(String path) throws IOException {
+		delay();
+		File dir = getFile(path);
+		if (!dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("Could not create " + path);
+		}
+	}
+
+	public List<RemoteFile> list(String path) throws IOException {
+		delay();
+		List<RemoteFile> files = new ArrayList<RemoteFile>();
+		File[] children = getFile(path).listFiles();
+		if (children != null) {
+			for (File child : children) {
+				files.add(new RemoteFile(child.getName(), child.isDirectory() ? 0
+						: child.length(), child.lastModified(), child
+						.isDirectory()));
+			}
+		}
+		return files;
+	}
+
+	public void setLastModified(String path, long time) throws IOException {
+		delay();
+		if (!getFile(path).setLastModified(time)) {
+			throw new IOException("Could not set the time of " + path);
+		}
+	}
+
+	public void rename(String from, String to) throws IOException {
+		delay();
+		if (!getFile(from).renameTo(getFile(to))) {
+			throw new IOException("Could not rename " + from + " to " + to);
+		}
+	}
+
+	public void delete(String path) throws IOException {
+		delay();
+		delete(getFile(path));
+	}
+
+	private static void delete(File file) throws IOException {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		if (!file.delete() && file.exists()) {
+			throw new IOException("Could not delete " + file);
+		}
+	}
+
+	public void reset(Throwable cause) {
+	}
+
+	private File getFile(String path) {
+		while (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		return path.length() == 0 ? root : new File(root, path);
+	}
+
+	private OutputStream delayed(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				delay();
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				delay();
+				out.write(b, off, len);
+			}
+		};
+	}
+
+	private void delay() throws IOException {
+		if (latency <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(latency);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package com.slide.hudson.plugins;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * The list of files published to a destination directory together with
+ * their size and SHA-256 checksum. It is stored next to the published files
+ * so the next publish can tell which files changed by reading a single file.
+ * </p>
+ * <p>
+ * Each line holds the checksum, the size and the path relative to the
+ * destination directory, separated by a single space.
+ * </p>
+ */
+public class Manifest {
+	/** The name of the manifest file in the destination directory. */
+	public static final String FILE_NAME = ".cifs-manifest";
+
+	/**
+	 * The name the previous manifest is kept under while a new one replaces
+	 * it.
+	 */
+	public static final String BACKUP_NAME = FILE_NAME + ".bak";
+
+	private static final String ENCODING = "UTF-8";
+
+	private final Map<String, Record> records = new TreeMap<String, Record>();
+
+	/**
+	 * @return the record for the given path, or null if there is none
+	 */
+	public synchronized Record get(String path) {
+		return records.get(path);
+	}
+
+	public synchronized void put(String path, Record record) {
+		records.put(path, record);
+	}
+
+	public synchronized void remove(String path) {
+		records.remove(path);
+	}
+
+	/**
+	 * Drops the records of all paths not in the given set.
+	 */
+	public synchronized void retainAll(Set<String> paths) {
+		records.keySet().retainAll(paths);
+	}
+
+	/**
+	 * Reads a manifest. Lines which can't be parsed are ignored, the files
+	 * they describe are simply uploaded again.
+	 */
+	public static Manifest read(InputStream in) throws IOException {
+		Manifest manifest = new Manifest();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+				ENCODING));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			String[] fields = line.split(" ", 3);
+			if (fields.length != 3) {
+				continue;
+			}
+			try {
+				manifest.records.put(fields[2], new Record(fields[0], Long
+						.parseLong(fields[1])));
+			} catch (NumberFormatException e) {
+				// ignore the line
+			}
+		}
+		return manifest;
+	}
+
+	public synchronized void write(OutputStream out) throws IOException {
+		Writer writer = new OutputStreamWriter(out, ENCODING);
+		for (Map.Entry<String, Record> entry : records.entrySet()) {
+			writer.write(entry.getValue().getDigest() + " "
+					+ entry.getValue().getLength() + " " + entry.getKey()
+					+ "\n");
+		}
+		writer.flush();
+	}
+
+	/**
+	 * The size and checksum of a single file.
+	 */
+	public static final class Record implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String digest;
+		private final long length;
+
+		public Record(String digest, long length) {
+			this.digest = digest;
+			this.length = length;
+		}
+
+		/**
+		 * @return the hex encoded SHA-256 checksum
+		 */
+		public String getDigest() {
+			return digest;
+		}
+
+		/**
+		 * @return the size in bytes
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Record)) {
+				return false;
+			}
+			Record other = (Record) o;
+			return length == other.length && digest.equals(other.digest);
+		}
+
+		@Override
+		public int hashCode() {
+			return digest.hashCode();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import hudson.FilePath;
+
+import java.io.Serializable;
+
+/**
+ * <p>
+ * A file to upload as found by the {@link FileWalker} on the node holding
+ * it: its path relative to the walked directory together with its size and
+ * modification time, so planning the upload needs no further calls to the
+ * node.
+ * </p>
+ */
+public final class PlannedFile implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String relativePath;
+	private final long length;
+	private final long lastModified;
+	private transient FilePath filePath;
+
+	/**
+	 * @param relativePath
+	 *            the path relative to the walked directory, separated by
+	 *            slashes
+	 */
+	public PlannedFile(String relativePath, long length, long lastModified) {
+		this.relativePath = relativePath;
+		this.length = length;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Resolves the file against the walked directory.
+	 */
+	PlannedFile resolve(FilePath base) {
+		filePath = base.child(relativePath);
+		return this;
+	}
+
+	/**
+	 * @return the path relative to the walked directory
+	 */
+	public String getRelativePath() {
+		return relativePath;
+	}
+
+	/**
+	 * @return the directory relative to the walked directory, empty for files
+	 *         directly in it
+	 */
+	public String getRelativeDir() {
+		int index = relativePath.lastIndexOf('/');
+		return index == -1 ? "" : relativePath.substring(0, index);
+	}
+
+	/**
+	 * @return the name of the file
+	 */
+	public String getName() {
+		return relativePath.substring(relativePath.lastIndexOf('/') + 1);
+	}
+
+	/**
+	 * @return the size of the file in bytes
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the last modification time in milliseconds since the epoch
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return the file on its node
+	 */
+	public FilePath getFilePath() {
+		return filePath;
+	}
+}
@@ -0,0 +1,243 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Performance figures of a publish: bytes and files transferred, the time
+ * spent in each stage and the distribution of the per file upload times.
+ * The figures are collected concurrently by the upload threads and stored
+ * with the build by the {@link PublishReportAction}.
+ * </p>
+ * <p>
+ * Upload times are kept in a histogram with buckets growing by 10% each, so
+ * the percentiles are accurate to about 10% and the memory needed doesn't
+ * depend on the number of files.
+ * </p>
+ */
+public class PublishMetrics {
+	/** The growth factor of the latency buckets. */
+	private static final double BUCKET_GROWTH = 1.1;
+
+	/** Enough buckets to cover upload times of more than a day. */
+	private static final int BUCKETS = 200;
+
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicInteger files = new AtomicInteger();
+	private final AtomicLong queueMillis = new AtomicLong();
+	private final AtomicLong enumerationMillis = new AtomicLong();
+	private final AtomicLong purgeMillis = new AtomicLong();
+	private final AtomicLong mkdirsMillis = new AtomicLong();
+	private final AtomicLong transferMillis = new AtomicLong();
+	private long totalMillis;
+	private int skipped;
+	private int failed;
+	private int retried;
+	private final long[] latencies = new long[BUCKETS];
+
+	/**
+	 * Records an uploaded file.
+	 * 
+	 * @param length
+	 *            the size of the file
+	 * @param millis
+	 *            how long the upload took
+	 */
+	public void fileTransferred(long length, long millis) {
+		bytes.addAndGet(length);
+		files.incrementAndGet();
+		int bucket = (int) (Math.log(millis + 1) / Math.log(BUCKET_GROWTH));
+		synchronized (latencies) {
+			latencies[Math.min(bucket, BUCKETS - 1)]++;
+		}
+	}
+
+	public void addQueueTime(long millis) {
+		queueMillis.addAndGet(millis);
+	}
+
+	public void addEnumerationTime(long millis) {
+		enumerationMillis.addAndGet(millis);
+	}
+
+	public void addPurgeTime(long millis) {
+		purgeMillis.addAndGet(millis);
+	}
+
+	public void addMkdirsTime(long millis) {
+		mkdirsMillis.addAndGet(millis);
+	}
+
+	public void addTransferTime(long millis) {
+		transferMillis.addAndGet(millis);
+	}
+
+	/**
+	 * Records the final figures of the publish.
+	 */
+	public void finish(long totalMillis, int skipped, int failed, int retried) {
+		this.totalMillis = totalMillis;
+		this.skipped = skipped;
+		this.failed = failed;
+		this.retried = retried;
+	}
+
+	/**
+	 * @return the number of bytes read from the workspace and uploaded
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return the number of uploaded files
+	 */
+	public int getFiles() {
+		return files.get();
+	}
+
+	/**
+	 * @return the bytes uploaded per second while transferring
+	 */
+	public long getThroughput() {
+		long millis = transferMillis.get();
+		return millis == 0 ? 0 : bytes.get() * 1000 / millis;
+	}
+
+	/**
+	 * @return the time spent waiting for other publishes to the share
+	 */
+	public long getQueueMillis() {
+		return queueMillis.get();
+	}
+
+	/**
+	 * @return the time spent waiting for the files to be found on the node
+	 */
+	public long getEnumerationMillis() {
+		return enumerationMillis.get();
+	}
+
+	/**
+	 * @return the time spent deleting files on the share
+	 */
+	public long getPurgeMillis() {
+		return purgeMillis.get();
+	}
+
+	/**
+	 * @return the time spent creating directories on the share, summed over
+	 *         all upload threads
+	 */
+	public long getMkdirsMillis() {
+		return mkdirsMillis.get();
+	}
+
+	/**
+	 * @return the time from the first upload until the last one finished
+	 */
+	public long getTransferMillis() {
+		return transferMillis.get();
+	}
+
+	/**
+	 * @return the time the whole publish took
+	 */
+	public long getTotalMillis() {
+		return totalMillis;
+	}
+
+	public int getSkipped() {
+		return skipped;
+	}
+
+	public int getFailed() {
+		return failed;
+	}
+
+	public int getRetried() {
+		return retried;
+	}
+
+	/**
+	 * Estimates a percentile of the per file upload times.
+	 * 
+	 * @param percentile
+	 *            the percentile from 0 to 100
+	 * @return the upper bound of the upload time in milliseconds of the given
+	 *         percentage of the files
+	 */
+	public long getLatencyPercentile(double percentile) {
+		synchronized (latencies) {
+			long count = 0;
+			for (long bucket : latencies) {
+				count += bucket;
+			}
+			if (count == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += latencies[i];
+				if (seen >= Math.max(rank, 1)) {
+					return Math.round(Math.pow(BUCKET_GROWTH, i + 1)) - 1;
+				}
+			}
+			return Math.round(Math.pow(BUCKET_GROWTH, BUCKETS)) - 1;
+		}
+	}
+
+	public long getLatencyP50() {
+		return getLatencyPercentile(50);
+	}
+
+	public long getLatencyP90() {
+		return getLatencyPercentile(90);
+	}
+
+	public long getLatencyP99() {
+		return getLatencyPercentile(99);
+	}
+
+	/**
+	 * Formats a number of bytes for display, e.g. "12.3 MB".
+	 */
+	public static String formatBytes(long bytes) {
+		if (bytes < 1024) {
+			return bytes + " B";
+		}
+		String[] units = { "KB", "MB", "GB", "TB" };
+		double value = bytes;
+		int unit = -1;
+		while (value >= 1024 && unit < units.length - 1) {
+			value /= 1024;
+			unit++;
+		}
+		return String.format("%.1f %s", value, units[unit]);
+	}
+}
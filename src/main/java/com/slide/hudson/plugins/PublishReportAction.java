@@ -0,0 +1,73 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import hudson.model.Action;
+
+/**
+ * <p>
+ * Attaches the {@link PublishMetrics} of a publish to the build. The figures
+ * are shown on the build page and on a report page of their own.
+ * </p>
+ */
+public class PublishReportAction implements Action {
+	private final String shareUrl;
+	private final PublishMetrics metrics;
+
+	public PublishReportAction(String shareUrl, PublishMetrics metrics) {
+		this.shareUrl = shareUrl;
+		this.metrics = metrics;
+	}
+
+	public String getIconFileName() {
+		return "graph.gif";
+	}
+
+	public String getDisplayName() {
+		return "CIFS Publish Report";
+	}
+
+	public String getUrlName() {
+		return "cifsReport";
+	}
+
+	/**
+	 * @return the display URL of the share the files were published to
+	 */
+	public String getShareUrl() {
+		return shareUrl;
+	}
+
+	public PublishMetrics getMetrics() {
+		return metrics;
+	}
+
+	public String getBytesDisplay() {
+		return PublishMetrics.formatBytes(metrics.getBytes());
+	}
+
+	public String getThroughputDisplay() {
+		return PublishMetrics.formatBytes(metrics.getThroughput()) + "/s";
+	}
+}
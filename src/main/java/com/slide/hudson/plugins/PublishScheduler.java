@@ -0,0 +1,153 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Limits how many builds publish to a share at the same time. Many
+ * concurrent sessions make a file server spend its time on contention
+ * rather than on transfers, so publishes beyond the share's limit wait in
+ * line, first come first served, until a running publish is done.
+ * </p>
+ * <p>
+ * Shares are told apart by their location, so shares configured with
+ * different logins for the same directory count as one.
+ * </p>
+ */
+public class PublishScheduler {
+	private static final Map<String, Slots> SLOTS = new HashMap<String, Slots>();
+
+	/**
+	 * The publishes allowed on a share.
+	 */
+	private static final class Slots {
+		private final int limit;
+		private final Semaphore semaphore;
+
+		Slots(int limit) {
+			this.limit = limit;
+			this.semaphore = new Semaphore(limit, true);
+		}
+	}
+
+	private final List<Semaphore> acquired = new ArrayList<Semaphore>();
+	private long waitMillis;
+
+	private PublishScheduler() {
+	}
+
+	/**
+	 * Waits until a publish to all the shares may start. The shares are
+	 * always queued for in the same order, so publishes to overlapping sets
+	 * of shares can't block each other.
+	 * 
+	 * @param shares
+	 *            the shares to publish to
+	 * @param logger
+	 *            the build log, told about any wait
+	 * @return the admission, to be released once the publish is done
+	 */
+	public static PublishScheduler admit(List<CIFSShare> shares,
+			PrintStream logger) throws InterruptedException {
+		List<CIFSShare> ordered = new ArrayList<CIFSShare>(shares);
+		Collections.sort(ordered, new Comparator<CIFSShare>() {
+			public int compare(CIFSShare a, CIFSShare b) {
+				return a.getShareUrl().compareTo(b.getShareUrl());
+			}
+		});
+
+		PublishScheduler admission = new PublishScheduler();
+		try {
+			String last = null;
+			for (CIFSShare share : ordered) {
+				String key = share.getShareUrl();
+				if (share.getMaxPublishes() <= 0 || key.equals(last)) {
+					continue;
+				}
+				last = key;
+				admission.acquire(share, logger);
+			}
+		} catch (InterruptedException e) {
+			admission.release();
+			throw e;
+		}
+		return admission;
+	}
+
+	private void acquire(CIFSShare share, PrintStream logger)
+			throws InterruptedException {
+		Semaphore semaphore;
+		synchronized (SLOTS) {
+			Slots slots = SLOTS.get(share.getShareUrl());
+			if (slots == null || slots.limit != share.getMaxPublishes()) {
+				// publishes holding a slot of the old limit release it there
+				slots = new Slots(share.getMaxPublishes());
+				SLOTS.put(share.getShareUrl(), slots);
+			}
+			semaphore = slots.semaphore;
+		}
+		// unlike tryAcquire(), a zero time out does not jump the queue of
+		// waiting publishes
+		if (!semaphore.tryAcquire(0, TimeUnit.SECONDS)) {
+			logger.println("Waiting for one of " + share.getMaxPublishes()
+					+ " publishes to " + share.getDisplayUrl()
+					+ " to finish, " + semaphore.getQueueLength()
+					+ " builds are waiting already.");
+			long start = System.currentTimeMillis();
+			semaphore.acquire();
+			long waited = System.currentTimeMillis() - start;
+			waitMillis += waited;
+			logger.println("Waited " + waited + " ms for "
+					+ share.getDisplayUrl() + ".");
+		}
+		acquired.add(semaphore);
+	}
+
+	/**
+	 * @return how long the publish waited to be admitted
+	 */
+	public long getWaitMillis() {
+		return waitMillis;
+	}
+
+	/**
+	 * Lets the next waiting publishes start.
+	 */
+	public void release() {
+		for (Semaphore semaphore : acquired) {
+			semaphore.release();
+		}
+		acquired.clear();
+	}
+}
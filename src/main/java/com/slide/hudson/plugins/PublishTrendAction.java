@@ -0,0 +1,131 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * Shows the publish performance of the recent builds of a project as a
+ * trend on the project page.
+ * </p>
+ */
+public class PublishTrendAction implements Action {
+	/** The number of builds shown. */
+	private static final int BUILDS = 30;
+
+	private final AbstractProject<?, ?> project;
+
+	public PublishTrendAction(AbstractProject<?, ?> project) {
+		this.project = project;
+	}
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return "CIFS Publish Trend";
+	}
+
+	public String getUrlName() {
+		return "cifsTrend";
+	}
+
+	public AbstractProject<?, ?> getProject() {
+		return project;
+	}
+
+	/**
+	 * @return the recent builds with a publish report, oldest first
+	 */
+	public List<Point> getPoints() {
+		List<Point> points = new ArrayList<Point>();
+		long maxThroughput = 1;
+		long maxTotal = 1;
+		for (AbstractBuild<?, ?> build = project.getLastBuild(); build != null
+				&& points.size() < BUILDS; build = build.getPreviousBuild()) {
+			PublishReportAction report = build
+					.getAction(PublishReportAction.class);
+			if (report != null) {
+				points.add(new Point(build.getNumber(), report));
+				maxThroughput = Math.max(maxThroughput, report.getMetrics()
+						.getThroughput());
+				maxTotal = Math.max(maxTotal, report.getMetrics()
+						.getTotalMillis());
+			}
+		}
+		for (Point point : points) {
+			point.throughputPercent = (int) (point.report.getMetrics()
+					.getThroughput() * 100 / maxThroughput);
+			point.totalPercent = (int) (point.report.getMetrics()
+					.getTotalMillis() * 100 / maxTotal);
+		}
+		Collections.reverse(points);
+		return points;
+	}
+
+	/**
+	 * A build in the trend.
+	 */
+	public static final class Point {
+		private final int number;
+		private final PublishReportAction report;
+		private int throughputPercent;
+		private int totalPercent;
+
+		Point(int number, PublishReportAction report) {
+			this.number = number;
+			this.report = report;
+		}
+
+		public int getNumber() {
+			return number;
+		}
+
+		public PublishReportAction getReport() {
+			return report;
+		}
+
+		/**
+		 * @return the throughput relative to the best build shown
+		 */
+		public int getThroughputPercent() {
+			return throughputPercent;
+		}
+
+		/**
+		 * @return the publish duration relative to the slowest build shown
+		 */
+		public int getTotalPercent() {
+			return totalPercent;
+		}
+	}
+}
@@ -0,0 +1,247 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package com.slide.hudson.plugins;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * Deletes a directory tree, or the stale parts of it, on a share. The tree is listed level by level,
+ * with the directories of a level listed concurrently, then all files are
+ * deleted by a pool of workers and finally the directories are removed
+ * bottom-up. The number of workers is the number of upload threads of the
+ * share.
+ * </p>
+ * <p>
+ * Interrupting the calling thread, e.g. by aborting the build, stops the
+ * purge.
+ * </p>
+ */
+public class PurgeEngine {
+	private final CIFSShare share;
+	private final PrintStream logger;
+
+	public PurgeEngine(CIFSShare share, PrintStream logger) {
+		this.share = share;
+		this.logger = logger;
+	}
+
+	/**
+	 * Deletes a directory and everything below it. The share directory
+	 * itself is kept, only its contents are deleted.
+	 * 
+	 * @param root
+	 *            the directory path relative to the share
+	 */
+	public void purge(String root) throws IOException, InterruptedException {
+		root = normalize(root);
+		if (!share.exists(root)) {
+			return;
+		}
+		logger.println("deleting " + share.getDisplayUrl() + root);
+		long start = System.currentTimeMillis();
+
+		ExecutorService executor = Executors.newFixedThreadPool(share
+				.getWorkers());
+		try {
+			List<String> files = new ArrayList<String>();
+			List<List<String>> levels = listTree(executor, root, files);
+
+			// delete the files, then the directories deepest first
+			removeAll(executor, files, "");
+			int dirs = 0;
+			int top = root.length() == 0 ? 1 : 0;
+			for (int i = levels.size() - 1; i >= top; i--) {
+				removeAll(executor, levels.get(i), "/");
+				dirs += levels.get(i).size();
+			}
+
+			logger.println("deleted " + files.size() + " files and " + dirs
+					+ " directories in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Deletes everything below a directory which is not in the given set of
+	 * files to keep. Directories are kept if they contain a file to keep.
+	 * 
+	 * @param root
+	 *            the directory path relative to the share
+	 * @param keep
+	 *            the paths of the files to keep, relative to the root
+	 */
+	public void purgeStale(String root, Set<String> keep) throws IOException,
+			InterruptedException {
+		root = normalize(root);
+		if (!share.exists(root)) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		String prefix = root.length() == 0 ? "" : root + "/";
+
+		Set<String> keepDirs = new HashSet<String>();
+		for (String path : keep) {
+			for (int index = path.lastIndexOf('/'); index > 0; index = path
+					.lastIndexOf('/', index - 1)) {
+				keepDirs.add(path.substring(0, index));
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(share
+				.getWorkers());
+		try {
+			List<String> files = new ArrayList<String>();
+			List<List<String>> levels = listTree(executor, root, files);
+
+			List<String> staleFiles = new ArrayList<String>();
+			for (String file : files) {
+				if (!keep.contains(file.substring(prefix.length()))) {
+					staleFiles.add(file);
+				}
+			}
+			removeAll(executor, staleFiles, "");
+
+			// the root itself is always kept
+			int dirs = 0;
+			for (int i = levels.size() - 1; i > 0; i--) {
+				List<String> staleDirs = new ArrayList<String>();
+				for (String dir : levels.get(i)) {
+					if (!keepDirs.contains(dir.substring(prefix.length()))) {
+						staleDirs.add(dir);
+					}
+				}
+				removeAll(executor, staleDirs, "/");
+				dirs += staleDirs.size();
+			}
+
+			logger.println("deleted " + staleFiles.size()
+					+ " stale files and " + dirs + " stale directories from "
+					+ share.getDisplayUrl() + root + " in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Lists a directory tree, one level at a time with the directories of a
+	 * level listed concurrently.
+	 * 
+	 * @param files
+	 *            receives the paths of all files in the tree
+	 * @return the paths of the directories in the tree by level, starting
+	 *         with the root
+	 */
+	private List<List<String>> listTree(ExecutorService executor,
+			String root, List<String> files) throws IOException,
+			InterruptedException {
+		List<List<String>> levels = new ArrayList<List<String>>();
+		List<String> level = new ArrayList<String>();
+		level.add(root);
+		while (!level.isEmpty()) {
+			levels.add(level);
+			List<Future<List<RemoteFile>>> listings = new ArrayList<Future<List<RemoteFile>>>();
+			for (final String dir : level) {
+				listings.add(executor.submit(new Callable<List<RemoteFile>>() {
+					public List<RemoteFile> call() throws IOException {
+						return share.list(dir);
+					}
+				}));
+			}
+			List<String> next = new ArrayList<String>();
+			for (int i = 0; i < level.size(); i++) {
+				String prefix = level.get(i).length() == 0 ? "" : level
+						.get(i)
+						+ "/";
+				for (RemoteFile file : get(listings.get(i))) {
+					if (file.isDirectory()) {
+						next.add(prefix + file.getName());
+					} else {
+						files.add(prefix + file.getName());
+					}
+				}
+			}
+			level = next;
+		}
+		return levels;
+	}
+
+	private static String normalize(String dir) {
+		while (dir.startsWith("/")) {
+			dir = dir.substring(1);
+		}
+		while (dir.endsWith("/")) {
+			dir = dir.substring(0, dir.length() - 1);
+		}
+		return dir;
+	}
+
+	/**
+	 * @param suffix
+	 *            appended to each path, "/" for directories so they are not
+	 *            looked up again before they are deleted
+	 */
+	private void removeAll(ExecutorService executor, List<String> paths,
+			final String suffix) throws IOException, InterruptedException {
+		List<Future<Void>> results = new ArrayList<Future<Void>>(paths
+				.size());
+		for (final String path : paths) {
+			results.add(executor.submit(new Callable<Void>() {
+				public Void call() throws IOException {
+					share.remove(path + suffix);
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> result : results) {
+			get(result);
+		}
+	}
+
+	private static <T> T get(Future<T> result) throws IOException,
+			InterruptedException {
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			IOException ioe = new IOException(e.getCause().getMessage());
+			ioe.initCause(e.getCause());
+			throw ioe;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package com.slide.hudson.plugins;
+
+import java.io.Serializable;
+
+/**
+ * <p>
+ * The attributes of a file on a share, as returned by a directory listing.
+ * </p>
+ */
+public class RemoteFile implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String name;
+	private final long length;
+	private final long lastModified;
+	private final boolean directory;
+
+	public RemoteFile(String name, long length, long lastModified,
+			boolean directory) {
+		this.name = name;
+		this.length = length;
+		this.lastModified = lastModified;
+		this.directory = directory;
+	}
+
+	/**
+	 * @return the name of the file, without any path
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the size of the file in bytes
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the last modification time in milliseconds since the epoch
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return true if this is a directory
+	 */
+	public boolean isDirectory() {
+		return directory;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package com.slide.hudson.plugins;
+
+import java.util.Random;
+
+/**
+ * <p>
+ * Decides how often and after which delay a failed transfer is tried again.
+ * The delay doubles with every attempt and is randomly spread by the
+ * configured jitter, so concurrent transfers don't retry in lock step.
+ * </p>
+ */
+public class RetryPolicy {
+	/** The longest delay between two attempts. */
+	private static final long MAX_DELAY = 60 * 1000;
+
+	private final int retries;
+	private final long delay;
+	private final int jitter;
+	private final Random random = new Random();
+
+	/**
+	 * @param retries
+	 *            how often a failed transfer is tried again
+	 * @param delay
+	 *            the delay before the first retry in milliseconds
+	 * @param jitter
+	 *            the random variation of the delay in percent
+	 */
+	public RetryPolicy(int retries, long delay, int jitter) {
+		this.retries = Math.max(retries, 0);
+		this.delay = Math.max(delay, 0);
+		this.jitter = Math.min(Math.max(jitter, 0), 100);
+	}
+
+	/**
+	 * @return how often a failed transfer is tried again
+	 */
+	public int getRetries() {
+		return retries;
+	}
+
+	/**
+	 * Gets the delay before the given retry.
+	 * 
+	 * @param retry
+	 *            the number of the retry, starting at 0
+	 * @return the delay in milliseconds
+	 */
+	public long getDelay(int retry) {
+		long base = delay << Math.min(retry, 16);
+		if (base > MAX_DELAY || base < 0) {
+			base = MAX_DELAY;
+		}
+		double spread;
+		synchronized (random) {
+			spread = (random.nextDouble() * 2 - 1) * jitter / 100;
+		}
+		return Math.max(0, Math.round(base * (1 + spread)));
+	}
+}
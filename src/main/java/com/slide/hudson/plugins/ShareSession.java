@@ -0,0 +1,168 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package com.slide.hudson.plugins;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jcifs.smb.NtlmPasswordAuthentication;
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+import jcifs.util.transport.TransportException;
+
+/**
+ * <p>
+ * An authenticated connection to a share, shared by all uploads to that
+ * share in this JVM. Every file handle is created relative to the session's
+ * root, so they all use the same credentials object and jcifs reuses the
+ * same transport, session and tree connection for them instead of
+ * authenticating again.
+ * </p>
+ * <p>
+ * Sessions which were not used for a while are dropped, and a session is
+ * recreated from scratch after a connection failure. If the share has a
+ * WINS server, the server name is resolved again each time the session
+ * connects.
+ * </p>
+ */
+public class ShareSession {
+	/** How long an unused session is kept. */
+	private static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+
+	private static final Map<String, ShareSession> sessions = new ConcurrentHashMap<String, ShareSession>();
+
+	private final CIFSShare share;
+	private final NtlmPasswordAuthentication auth;
+	private volatile SmbFile root;
+	private volatile long lastUsed = System.currentTimeMillis();
+
+	private ShareSession(CIFSShare share, NtlmPasswordAuthentication auth) {
+		this.share = share;
+		this.auth = auth;
+	}
+
+	/**
+	 * Gets the session for a share, creating it if needed.
+	 * 
+	 * @param share
+	 *            the share to connect to
+	 * @return the session for the share
+	 */
+	public static ShareSession of(CIFSShare share) {
+		evictIdle();
+		String key = share.getSessionKey();
+		ShareSession session = sessions.get(key);
+		if (session == null) {
+			synchronized (sessions) {
+				session = sessions.get(key);
+				if (session == null) {
+					NtlmPasswordAuthentication auth = null;
+					if (share.getUsername() != null
+							&& share.getUsername().length() > 0) {
+						auth = new NtlmPasswordAuthentication(share
+								.getDomain(), share.getUsername(), share
+								.getPassword());
+					}
+					SmbContext.apply(share);
+					session = new ShareSession(share, auth);
+					sessions.put(key, session);
+				}
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * Gets a handle for a file or directory on the share.
+	 * 
+	 * @param path
+	 *            the path relative to the share, directories should end with
+	 *            a slash
+	 * @return the handle
+	 */
+	public SmbFile getFile(String path) throws IOException {
+		lastUsed = System.currentTimeMillis();
+		SmbFile current = getRoot();
+		if (path == null || path.length() == 0 || path.equals("/")) {
+			return current;
+		}
+		while (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		return new SmbFile(current, path);
+	}
+
+	/**
+	 * Called after a failure. The session is shared by all uploads to the
+	 * share in this JVM, so the connection state is only dropped, making
+	 * jcifs connect again for the next handle, if the connection itself
+	 * broke down.
+	 * 
+	 * @param cause
+	 *            the failure
+	 */
+	public void reset(Throwable cause) {
+		if (isConnectionError(cause)) {
+			root = null;
+		}
+	}
+
+	private static boolean isConnectionError(Throwable cause) {
+		while (cause != null) {
+			if (cause instanceof TransportException
+					|| cause instanceof SocketException
+					|| cause instanceof InterruptedIOException
+					|| cause instanceof UnknownHostException) {
+				return true;
+			}
+			cause = cause instanceof SmbException ? ((SmbException) cause)
+					.getRootCause() : cause.getCause();
+		}
+		return false;
+	}
+
+	private SmbFile getRoot() throws IOException {
+		SmbFile current = root;
+		if (current == null) {
+			String url = share.getShareUrl(SmbContext.resolve(share));
+			current = auth == null ? new SmbFile(url) : new SmbFile(url, auth);
+			root = current;
+		}
+		return current;
+	}
+
+	private static void evictIdle() {
+		long now = System.currentTimeMillis();
+		for (Iterator<ShareSession> it = sessions.values().iterator(); it
+				.hasNext();) {
+			if (now - it.next().lastUsed > IDLE_TIMEOUT) {
+				it.remove();
+			}
+		}
+	}
+}
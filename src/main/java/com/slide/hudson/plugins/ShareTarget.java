@@ -0,0 +1,60 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * <p>
+ * A further share a publisher copies the same files to. The fields can be
+ * configured in the job configuration page in hudson.
+ * </p>
+ */
+public final class ShareTarget {
+    /**
+     * Display URL of the configured share.
+     */
+    private String shareUrl;
+
+    @DataBoundConstructor
+    public ShareTarget(String shareUrl) {
+        this.shareUrl = shareUrl;
+    }
+
+    /**
+     * Display URL of the configured share.
+     * @return the shareUrl
+     */
+    public String getShareUrl() {
+        return shareUrl;
+    }
+
+    /**
+     * Display URL of the configured share.
+     * @param shareUrl the shareUrl to set
+     */
+    public void setShareUrl(String shareUrl) {
+        this.shareUrl = shareUrl;
+    }
+}
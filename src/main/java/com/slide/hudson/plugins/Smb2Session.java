@@ -0,0 +1,306 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.SmbConfig;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.share.DiskShare;
+
+/**
+ * <p>
+ * An authenticated SMB2/SMB3 connection to a share, the counterpart of
+ * {@link ShareSession} for shares using {@link CIFSShare#SMB2}. It is
+ * shared by all uploads to the share in this JVM, which send their requests
+ * over it concurrently.
+ * </p>
+ * <p>
+ * Unlike jcifs, the SMB2 client is configured for each share: the time out,
+ * message signing and the WINS server of the share apply to its connection
+ * only.
+ * </p>
+ * <p>
+ * Uploads lease the session for as long as they use it, see
+ * {@link #acquire()}. A leased session is neither evicted nor closed, and a
+ * failed request only closes the connection if the connection itself is
+ * lost, so one failing upload does not break the others sharing it.
+ * </p>
+ */
+public class Smb2Session {
+	/** How long an unused session is kept. */
+	private static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+
+	/**
+	 * The largest read and write requests, used as far as the server allows.
+	 * Servers supporting large MTUs accept up to 8 MiB.
+	 */
+	private static final int MAX_REQUEST_SIZE = 8 * 1024 * 1024;
+
+	private static final Map<String, Smb2Session> sessions = new ConcurrentHashMap<String, Smb2Session>();
+
+	private final CIFSShare share;
+	private final String shareName;
+	private final String basePath;
+	private SMBClient client;
+	private Connection connection;
+	private volatile DiskShare disk;
+	private volatile long lastUsed = System.currentTimeMillis();
+	private int leases;
+	private boolean evicted;
+	private Smb2Session successor;
+
+	private Smb2Session(CIFSShare share) {
+		this.share = share;
+		String dir = share.getDir() == null ? "" : share.getDir().replace(
+				'\\', '/');
+		while (dir.startsWith("/")) {
+			dir = dir.substring(1);
+		}
+		int slash = dir.indexOf('/');
+		shareName = slash < 0 ? dir : dir.substring(0, slash);
+		String base = slash < 0 ? "" : dir.substring(slash + 1);
+		while (base.endsWith("/")) {
+			base = base.substring(0, base.length() - 1);
+		}
+		basePath = base;
+	}
+
+	/**
+	 * Gets the session for a share, creating it if needed.
+	 * 
+	 * @param share
+	 *            the share to connect to
+	 * @return the session for the share
+	 */
+	public static Smb2Session of(CIFSShare share) {
+		evictIdle();
+		String key = share.getSessionKey();
+		Smb2Session session = sessions.get(key);
+		if (session == null) {
+			synchronized (sessions) {
+				session = sessions.get(key);
+				if (session == null) {
+					session = new Smb2Session(share);
+					sessions.put(key, session);
+				}
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * Leases the session and gets the connected share, connecting if needed.
+	 * Every successful call must be followed by a call to {@link #release()}
+	 * once the share is no longer used.
+	 * <p>
+	 * A session can be evicted after {@link #of(CIFSShare)} returned it and
+	 * before it is acquired. It is not connected again then, as nothing
+	 * would close it, but the leases go to the session which replaced it.
+	 * </p>
+	 */
+	DiskShare acquire() throws IOException {
+		boolean leased;
+		synchronized (this) {
+			leased = !evicted;
+			if (leased) {
+				leases++;
+			}
+		}
+		if (!leased) {
+			return getSuccessor().acquire();
+		}
+		try {
+			return getShare();
+		} catch (IOException e) {
+			release();
+			throw e;
+		} catch (RuntimeException e) {
+			release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a lease taken by {@link #acquire()}.
+	 */
+	void release() {
+		synchronized (this) {
+			if (!evicted) {
+				leases--;
+				lastUsed = System.currentTimeMillis();
+				return;
+			}
+		}
+		getSuccessor().release();
+	}
+
+	private synchronized boolean isEvicted() {
+		return evicted;
+	}
+
+	/**
+	 * Gets the session which replaced this one once it was evicted. It is
+	 * looked up only once, so every lease goes back to the session it was
+	 * taken from.
+	 */
+	private Smb2Session getSuccessor() {
+		synchronized (this) {
+			if (successor != null) {
+				return successor;
+			}
+		}
+		Smb2Session next = of(share);
+		synchronized (this) {
+			if (successor == null) {
+				successor = next;
+			}
+			return successor;
+		}
+	}
+
+	private DiskShare getShare() throws IOException {
+		lastUsed = System.currentTimeMillis();
+		DiskShare current = disk;
+		if (current == null) {
+			synchronized (this) {
+				current = disk;
+				if (current == null) {
+					current = connect();
+					disk = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Converts a path relative to the share directory into the path on the
+	 * SMB share, which uses backslashes.
+	 */
+	String getPath(String path) {
+		path = path.replace('\\', '/');
+		while (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		while (path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		if (basePath.length() > 0) {
+			path = path.length() == 0 ? basePath : basePath + "/" + path;
+		}
+		return path.replace('/', '\\');
+	}
+
+	/**
+	 * Called after a failure. The connection is closed, so the next request
+	 * connects again, only if it was lost; a request failing on a working
+	 * connection leaves it to the other uploads using it.
+	 */
+	public void reset() {
+		if (isEvicted()) {
+			getSuccessor().reset();
+			return;
+		}
+		synchronized (this) {
+			if (connection != null && connection.isConnected()) {
+				return;
+			}
+			close();
+		}
+	}
+
+	private synchronized void close() {
+		disk = null;
+		connection = null;
+		if (client != null) {
+			client.close();
+			client = null;
+		}
+	}
+
+	private DiskShare connect() throws IOException {
+		SmbConfig.Builder config = SmbConfig.builder().withDialects(
+				SMB2Dialect.SMB_3_1_1, SMB2Dialect.SMB_3_0_2,
+				SMB2Dialect.SMB_3_0, SMB2Dialect.SMB_2_1,
+				SMB2Dialect.SMB_2_0_2).withSigningRequired(share.isSigning())
+				.withReadBufferSize(MAX_REQUEST_SIZE).withWriteBufferSize(
+						MAX_REQUEST_SIZE);
+		if (share.getTimeOut() > 0) {
+			config.withTimeout(share.getTimeOut(), TimeUnit.SECONDS)
+					.withSoTimeout(share.getTimeOut() + 5, TimeUnit.SECONDS);
+		}
+		SMBClient newClient = new SMBClient(config.build());
+		try {
+			Connection newConnection = newClient.connect(SmbContext
+					.resolve(share), share.getIntegerPort() > 0 ? share
+					.getIntegerPort() : CIFSShare.DEFAULT_SMB_PORT);
+			AuthenticationContext auth;
+			if (share.getUsername() != null
+					&& share.getUsername().length() > 0) {
+				String password = share.getPassword() == null ? "" : share
+						.getPassword();
+				auth = new AuthenticationContext(share.getUsername(),
+						password.toCharArray(), share.getDomain());
+			} else {
+				auth = AuthenticationContext.anonymous();
+			}
+			DiskShare connected = (DiskShare) newConnection.authenticate(
+					auth).connectShare(shareName);
+			client = newClient;
+			connection = newConnection;
+			return connected;
+		} catch (SMBRuntimeException e) {
+			newClient.close();
+			throw new IOException(e);
+		} catch (IOException e) {
+			newClient.close();
+			throw e;
+		}
+	}
+
+	private static void evictIdle() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Smb2Session> it = sessions.values().iterator(); it
+				.hasNext();) {
+			Smb2Session session = it.next();
+			synchronized (session) {
+				if (session.leases == 0
+						&& now - session.lastUsed > IDLE_TIMEOUT) {
+					it.remove();
+					session.evicted = true;
+					session.close();
+				}
+			}
+		}
+	}
+}
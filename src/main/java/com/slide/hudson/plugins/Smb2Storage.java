@@ -0,0 +1,368 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.msdtyp.FileTime;
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.msfscc.fileinformation.FileBasicInformation;
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2ShareAccess;
+import com.hierynomus.protocol.commons.EnumWithValue;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.smbj.share.DiskEntry;
+import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.smbj.share.File;
+
+/**
+ * <p>
+ * Stores the files on the share over SMB2 or SMB3, through a
+ * {@link Smb2Session}.
+ * </p>
+ * <p>
+ * Writes are sent in requests as large as the server accepts, up to 8 MiB
+ * on servers supporting large MTUs instead of the 64 KiB of SMB1, and
+ * concurrent requests, like the ranges of a chunked upload, are pipelined
+ * over the one connection as far as the server grants credits.
+ * </p>
+ */
+public class Smb2Storage implements Storage {
+	private final Smb2Session session;
+
+	public Smb2Storage(Smb2Session session) {
+		this.session = session;
+	}
+
+	public OutputStream create(String path) throws IOException {
+		File file = openFile(path, AccessMask.GENERIC_WRITE,
+				SMB2CreateDisposition.FILE_OVERWRITE_IF);
+		return closing(file, file.getOutputStream());
+	}
+
+	public OutputStream append(String path) throws IOException {
+		File file = openFile(path, AccessMask.GENERIC_WRITE,
+				SMB2CreateDisposition.FILE_OPEN);
+		return closing(file, file.getOutputStream(true));
+	}
+
+	public InputStream open(String path) throws IOException {
+		final File file = openFile(path, AccessMask.GENERIC_READ,
+				SMB2CreateDisposition.FILE_OPEN);
+		return new FilterInputStream(file.getInputStream()) {
+			@Override
+			public int read() throws IOException {
+				try {
+					return super.read();
+				} catch (SMBRuntimeException e) {
+					throw new IOException(e);
+				}
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				try {
+					return super.read(b, off, len);
+				} catch (SMBRuntimeException e) {
+					throw new IOException(e);
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					closeFile(file);
+				}
+			}
+		};
+	}
+
+	public RandomAccess openRandom(String path) throws IOException {
+		final File file = openFile(path, EnumSet.of(AccessMask.GENERIC_READ,
+				AccessMask.GENERIC_WRITE), SMB2CreateDisposition.FILE_OPEN_IF);
+		return new RandomAccess() {
+			private long position;
+
+			public void seek(long position) {
+				this.position = position;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				try {
+					int read = file.read(b, position, off, len);
+					if (read > 0) {
+						position += read;
+					}
+					return read;
+				} catch (SMBRuntimeException e) {
+					throw new IOException(e);
+				}
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				try {
+					long written = file.write(b, position, off, len);
+					position += written;
+				} catch (SMBRuntimeException e) {
+					throw new IOException(e);
+				}
+			}
+
+			public void setLength(long length) throws IOException {
+				try {
+					file.setLength(length);
+				} catch (SMBRuntimeException e) {
+					throw new IOException(e);
+				}
+			}
+
+			public void close() {
+				closeFile(file);
+			}
+		};
+	}
+
+	public boolean exists(String path) throws IOException {
+		DiskShare share = session.acquire();
+		String smbPath = session.getPath(path);
+		try {
+			return share.folderExists(smbPath) || share.fileExists(smbPath);
+		} catch (SMBRuntimeException e) {
+			throw new IOException(e);
+		} finally {
+			session.release();
+		}
+	}
+
+	public long length(String path) throws IOException {
+		DiskShare share = session.acquire();
+		try {
+			return share.getFileInformation(session.getPath(path))
+					.getStandardInformation().getEndOfFile();
+		} catch (SMBRuntimeException e) {
+			throw new IOException(e);
+		} finally {
+			session.release();
+		}
+	}
+
+	public void mkdir(String path) throws IOException {
+		DiskShare share = session.acquire();
+		try {
+			share.mkdir(session.getPath(path));
+		} catch (SMBRuntimeException e) {
+			throw new IOException(e);
+		} finally {
+			session.release();
+		}
+	}
+
+	public void mkdirs(String path) throws IOException {
+		DiskShare share = session.acquire();
+		try {
+			StringBuilder current = new StringBuilder();
+			for (String name : path.replace('\\', '/').split("/")) {
+				if (name.length() == 0) {
+					continue;
+				}
+				current.append(name).append('/');
+				String smbPath = session.getPath(current.toString());
+				try {
+					if (!share.folderExists(smbPath)) {
+						share.mkdir(smbPath);
+					}
+				} catch (SMBRuntimeException e) {
+					// another upload thread may have created it in the
+					// meantime
+					if (!share.folderExists(smbPath)) {
+						throw new IOException(e);
+					}
+				}
+			}
+		} finally {
+			session.release();
+		}
+	}
+
+	public List<RemoteFile> list(String path) throws IOException {
+		List<RemoteFile> files = new ArrayList<RemoteFile>();
+		DiskShare share = session.acquire();
+		String smbPath = session.getPath(path);
+		try {
+			if (!share.folderExists(smbPath)) {
+				return files;
+			}
+			for (FileIdBothDirectoryInformation info : share.list(smbPath)) {
+				String name = info.getFileName();
+				if (name.equals(".") || name.equals("..")) {
+					continue;
+				}
+				boolean directory = EnumWithValue.EnumUtils.isSet(info
+						.getFileAttributes(),
+						FileAttributes.FILE_ATTRIBUTE_DIRECTORY);
+				files.add(new RemoteFile(name, directory ? 0 : info
+						.getEndOfFile(), info.getLastWriteTime()
+						.toEpochMillis(), directory));
+			}
+			return files;
+		} catch (SMBRuntimeException e) {
+			throw new IOException(e);
+		} finally {
+			session.release();
+		}
+	}
+
+	public void setLastModified(String path, long time) throws IOException {
+		DiskShare share = session.acquire();
+		try {
+			share.setFileInformation(
+					session.getPath(path),
+					new FileBasicInformation(FileBasicInformation.DONT_SET,
+							FileBasicInformation.DONT_SET, FileTime
+									.ofEpochMillis(time),
+							FileBasicInformation.DONT_SET, 0));
+		} catch (SMBRuntimeException e) {
+			throw new IOException(e);
+		} finally {
+			session.release();
+		}
+	}
+
+	public void rename(String from, String to) throws IOException {
+		DiskShare share = session.acquire();
+		try {
+			DiskEntry entry = share.open(session.getPath(from),
+					EnumSet.of(AccessMask.DELETE), null, SMB2ShareAccess.ALL,
+					SMB2CreateDisposition.FILE_OPEN, null);
+			try {
+				entry.rename(session.getPath(to), false);
+			} finally {
+				entry.close();
+			}
+		} catch (SMBRuntimeException e) {
+			throw new IOException(e);
+		} finally {
+			session.release();
+		}
+	}
+
+	public void delete(String path) throws IOException {
+		DiskShare share = session.acquire();
+		String smbPath = session.getPath(path);
+		try {
+			if (path.endsWith("/")) {
+				share.rmdir(smbPath, true);
+			} else {
+				share.rm(smbPath);
+			}
+		} catch (SMBRuntimeException e) {
+			throw new IOException(e);
+		} finally {
+			session.release();
+		}
+	}
+
+	public void reset(Throwable cause) {
+		session.reset();
+	}
+
+	private File openFile(String path, AccessMask access,
+			SMB2CreateDisposition disposition) throws IOException {
+		return openFile(path, EnumSet.of(access), disposition);
+	}
+
+	/**
+	 * Opens a file, leasing the session until the file is closed by
+	 * {@link #closeFile(File)}.
+	 */
+	private File openFile(String path, EnumSet<AccessMask> access,
+			SMB2CreateDisposition disposition) throws IOException {
+		DiskShare share = session.acquire();
+		try {
+			return share.openFile(session.getPath(path), access, null,
+					SMB2ShareAccess.ALL, disposition, null);
+		} catch (SMBRuntimeException e) {
+			session.release();
+			throw new IOException(e);
+		} catch (RuntimeException e) {
+			session.release();
+			throw e;
+		}
+	}
+
+	private void closeFile(File file) {
+		try {
+			file.close();
+		} finally {
+			session.release();
+		}
+	}
+
+	/**
+	 * Wraps the stream of a file so closing it closes the file too.
+	 */
+	private OutputStream closing(final File file, OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				try {
+					out.write(b);
+				} catch (SMBRuntimeException e) {
+					throw new IOException(e);
+				}
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				try {
+					out.write(b, off, len);
+				} catch (SMBRuntimeException e) {
+					throw new IOException(e);
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					out.close();
+				} catch (SMBRuntimeException e) {
+					throw new IOException(e);
+				} finally {
+					closeFile(file);
+				}
+			}
+		};
+	}
+}
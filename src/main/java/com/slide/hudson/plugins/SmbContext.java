@@ -0,0 +1,145 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jcifs.Config;
+import jcifs.netbios.NbtAddress;
+
+/**
+ * <p>
+ * The SMB client settings of a share.
+ * </p>
+ * <p>
+ * The WINS server is used by the share alone: the server name is resolved
+ * through it when the share's session connects, and the session connects
+ * to the resolved address.
+ * </p>
+ * <p>
+ * jcifs reads the other settings (timeouts, socket buffers, the number of
+ * requests in flight per connection and message signing) once per JVM, when
+ * it makes its first connection. They are therefore applied by the first
+ * share used in a JVM, and all shares using jcifs must have the same
+ * settings, which is checked when the configuration is saved, see
+ * {@link #findConflict(List)}. Changed settings take effect after a restart.
+ * Shares using {@link CIFSShare#SMB2} don't use jcifs, see
+ * {@link Smb2Session}.
+ * </p>
+ */
+public class SmbContext {
+	/** The NetBIOS name type of a file server. */
+	private static final int SERVER_NAME_TYPE = 0x20;
+
+	/** The settings jcifs was set up with in this JVM. */
+	private static Map<String, String> applied;
+
+	private SmbContext() {
+	}
+
+	/**
+	 * Sets jcifs up with the settings of a share, unless it was set up
+	 * already. Must be called before a share is connected to.
+	 */
+	public static synchronized void apply(CIFSShare share) {
+		if (applied != null || CIFSShare.SMB2.equals(share.getProtocol())) {
+			return;
+		}
+		applied = getSettings(share);
+		for (Map.Entry<String, String> setting : applied.entrySet()) {
+			Config.setProperty(setting.getKey(), setting.getValue());
+		}
+	}
+
+	/**
+	 * Finds a share using jcifs whose settings differ from those of the
+	 * other shares using jcifs, which can't be used side by side.
+	 * 
+	 * @return the first share with settings differing from those before it,
+	 *         or null if there is none
+	 */
+	static CIFSShare findConflict(List<CIFSShare> shares) {
+		Map<String, String> first = null;
+		for (CIFSShare share : shares) {
+			if (CIFSShare.SMB2.equals(share.getProtocol())) {
+				continue;
+			}
+			Map<String, String> settings = getSettings(share);
+			if (first == null) {
+				first = settings;
+			} else if (!first.equals(settings)) {
+				return share;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the jcifs properties for the settings of a share. Settings left
+	 * empty keep the jcifs defaults.
+	 */
+	static Map<String, String> getSettings(CIFSShare share) {
+		Map<String, String> settings = new TreeMap<String, String>();
+		if (share.getTimeOut() > 0) {
+			long millis = share.getTimeOut() * 1000L;
+			settings.put("jcifs.smb.client.responseTimeout", String
+					.valueOf(millis));
+			// jcifs closes idle sockets a little after a response timed out
+			settings.put("jcifs.smb.client.soTimeout", String
+					.valueOf(millis + 5000));
+		}
+		if (share.getSocketBufferSize() > 0) {
+			String bytes = String.valueOf(share.getSocketBufferSize() * 1024);
+			settings.put("jcifs.smb.client.rcv_buf_size", bytes);
+			settings.put("jcifs.smb.client.snd_buf_size", bytes);
+		}
+		if (share.getMaxMux() > 0) {
+			settings.put("jcifs.smb.client.maxMux", String.valueOf(share
+					.getMaxMux()));
+		}
+		if (share.isSigning()) {
+			settings.put("jcifs.smb.client.signingPreferred", "true");
+		}
+		return settings;
+	}
+
+	/**
+	 * Resolves the server of a share through the share's WINS server.
+	 * 
+	 * @return the address of the server, or the server name as it is if the
+	 *         share has no WINS server
+	 */
+	static String resolve(CIFSShare share) throws IOException {
+		String wins = share.getWinsServer();
+		if (wins == null || wins.trim().length() == 0) {
+			return share.getServer();
+		}
+		return NbtAddress.getByName(share.getServer(), SERVER_NAME_TYPE, null,
+				InetAddress.getByName(wins.trim())).getHostAddress();
+	}
+}
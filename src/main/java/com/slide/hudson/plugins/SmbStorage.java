@@ -0,0 +1,143 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import jcifs.smb.SmbFile;
+import jcifs.smb.SmbFileOutputStream;
+import jcifs.smb.SmbRandomAccessFile;
+
+/**
+ * <p>
+ * Stores the files on the SMB share itself, through the handles of a
+ * {@link ShareSession}.
+ * </p>
+ */
+public class SmbStorage implements Storage {
+	private final ShareSession session;
+
+	public SmbStorage(ShareSession session) {
+		this.session = session;
+	}
+
+	public OutputStream create(String path) throws IOException {
+		return session.getFile(path).getOutputStream();
+	}
+
+	public OutputStream append(String path) throws IOException {
+		return new SmbFileOutputStream(session.getFile(path), true);
+	}
+
+	public InputStream open(String path) throws IOException {
+		return session.getFile(path).getInputStream();
+	}
+
+	public RandomAccess openRandom(String path) throws IOException {
+		final SmbRandomAccessFile file = new SmbRandomAccessFile(session
+				.getFile(path), "rw");
+		return new RandomAccess() {
+			public void seek(long position) throws IOException {
+				file.seek(position);
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				return file.read(b, off, len);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				file.write(b, off, len);
+			}
+
+			public void setLength(long length) throws IOException {
+				file.setLength(length);
+			}
+
+			public void close() throws IOException {
+				file.close();
+			}
+		};
+	}
+
+	public boolean exists(String path) throws IOException {
+		return session.getFile(path).exists();
+	}
+
+	public long length(String path) throws IOException {
+		return session.getFile(path).length();
+	}
+
+	public void mkdir(String path) throws IOException {
+		session.getFile(path).mkdir();
+	}
+
+	public void mkdirs(String path) throws IOException {
+		session.getFile(path).mkdirs();
+	}
+
+	public List<RemoteFile> list(String path) throws IOException {
+		List<RemoteFile> files = new ArrayList<RemoteFile>();
+		if (path.length() > 0 && !path.endsWith("/")) {
+			path += "/";
+		}
+		SmbFile current = session.getFile(path);
+		if (!current.exists()) {
+			return files;
+		}
+		for (SmbFile child : current.listFiles()) {
+			String name = child.getName();
+			// jcifs marks directories with a trailing slash
+			if (name.endsWith("/")) {
+				files.add(new RemoteFile(name.substring(0, name.length() - 1),
+						0, child.lastModified(), true));
+			} else {
+				files.add(new RemoteFile(name, child.length(), child
+						.lastModified(), false));
+			}
+		}
+		return files;
+	}
+
+	public void setLastModified(String path, long time) throws IOException {
+		session.getFile(path).setLastModified(time);
+	}
+
+	public void rename(String from, String to) throws IOException {
+		session.getFile(from).renameTo(session.getFile(to));
+	}
+
+	public void delete(String path) throws IOException {
+		// jcifs lists a directory before deleting it, which needs the
+		// trailing slash the callers give directories with
+		session.getFile(path).delete();
+	}
+
+	public void reset(Throwable cause) {
+		session.reset(cause);
+	}
+}
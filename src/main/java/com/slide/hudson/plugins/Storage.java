@@ -0,0 +1,127 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * <p>
+ * The operations the plugin needs from the place a share's files are
+ * stored. All paths are relative to the share, separated by slashes, and may
+ * end with a slash for directories.
+ * </p>
+ * <p>
+ * {@link SmbStorage} talks to the real share. {@link LocalStorage} keeps the
+ * files in a local directory instead, with an optional delay for every
+ * request, so publishing can be measured and compared without a file
+ * server.
+ * </p>
+ */
+public interface Storage {
+	/**
+	 * Creates a file, or truncates it if it exists, and opens it for writing.
+	 */
+	OutputStream create(String path) throws IOException;
+
+	/**
+	 * Opens an existing file for writing at its end.
+	 */
+	OutputStream append(String path) throws IOException;
+
+	/**
+	 * Opens an existing file for reading.
+	 */
+	InputStream open(String path) throws IOException;
+
+	/**
+	 * Opens a file for reading and writing at arbitrary offsets, creating it
+	 * if needed.
+	 */
+	RandomAccess openRandom(String path) throws IOException;
+
+	boolean exists(String path) throws IOException;
+
+	/**
+	 * @return the size of the file in bytes
+	 */
+	long length(String path) throws IOException;
+
+	/**
+	 * Creates a directory whose parent exists.
+	 */
+	void mkdir(String path) throws IOException;
+
+	/**
+	 * Creates a directory and any missing parents.
+	 */
+	void mkdirs(String path) throws IOException;
+
+	/**
+	 * Lists a directory with a single request.
+	 * 
+	 * @return the files and directories in the directory, empty if the
+	 *         directory does not exist
+	 */
+	List<RemoteFile> list(String path) throws IOException;
+
+	void setLastModified(String path, long time) throws IOException;
+
+	/**
+	 * Renames a file or directory. The target must not exist.
+	 */
+	void rename(String from, String to) throws IOException;
+
+	/**
+	 * Deletes a file or directory, directories with everything below them.
+	 * Directories are given with a trailing slash.
+	 */
+	void delete(String path) throws IOException;
+
+	/**
+	 * Called after a failure. Drops the connection state if the failure
+	 * shows that the connection broke down, so the next request starts from
+	 * scratch.
+	 * 
+	 * @param cause
+	 *            the failure
+	 */
+	void reset(Throwable cause);
+
+	/**
+	 * A file opened for reading and writing at arbitrary offsets.
+	 */
+	interface RandomAccess extends Closeable {
+		void seek(long position) throws IOException;
+
+		int read(byte[] b, int off, int len) throws IOException;
+
+		void write(byte[] b, int off, int len) throws IOException;
+
+		void setLength(long length) throws IOException;
+	}
+}
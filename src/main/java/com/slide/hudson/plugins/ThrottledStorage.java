@@ -0,0 +1,162 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * <p>
+ * Writes to another storage no faster than a {@link BandwidthLimiter}
+ * allows. Only the file content written is limited; reads and directory
+ * operations pass straight through.
+ * </p>
+ */
+public class ThrottledStorage implements Storage {
+	private final Storage storage;
+	private final BandwidthLimiter limiter;
+	private final BandwidthLimiter.Tokens tokens;
+
+	/**
+	 * @param tokens
+	 *            the master's buckets if this is a build node, null on the
+	 *            master
+	 */
+	public ThrottledStorage(Storage storage, BandwidthLimiter limiter,
+			BandwidthLimiter.Tokens tokens) {
+		this.storage = storage;
+		this.limiter = limiter;
+		this.tokens = tokens;
+	}
+
+	public OutputStream create(String path) throws IOException {
+		return throttled(storage.create(path));
+	}
+
+	public OutputStream append(String path) throws IOException {
+		return throttled(storage.append(path));
+	}
+
+	public InputStream open(String path) throws IOException {
+		return storage.open(path);
+	}
+
+	public RandomAccess openRandom(String path) throws IOException {
+		final RandomAccess file = storage.openRandom(path);
+		return new RandomAccess() {
+			public void seek(long position) throws IOException {
+				file.seek(position);
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				return file.read(b, off, len);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					int granted = take(len);
+					file.write(b, off, granted);
+					off += granted;
+					len -= granted;
+				}
+			}
+
+			public void setLength(long length) throws IOException {
+				file.setLength(length);
+			}
+
+			public void close() throws IOException {
+				file.close();
+			}
+		};
+	}
+
+	public boolean exists(String path) throws IOException {
+		return storage.exists(path);
+	}
+
+	public long length(String path) throws IOException {
+		return storage.length(path);
+	}
+
+	public void mkdir(String path) throws IOException {
+		storage.mkdir(path);
+	}
+
+	public void mkdirs(String path) throws IOException {
+		storage.mkdirs(path);
+	}
+
+	public List<RemoteFile> list(String path) throws IOException {
+		return storage.list(path);
+	}
+
+	public void setLastModified(String path, long time) throws IOException {
+		storage.setLastModified(path, time);
+	}
+
+	public void rename(String from, String to) throws IOException {
+		storage.rename(from, to);
+	}
+
+	public void delete(String path) throws IOException {
+		storage.delete(path);
+	}
+
+	public void reset(Throwable cause) {
+		storage.reset(cause);
+	}
+
+	private OutputStream throttled(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				take(1);
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					int granted = take(len);
+					out.write(b, off, granted);
+					off += granted;
+					len -= granted;
+				}
+			}
+		};
+	}
+
+	private int take(int wanted) throws IOException {
+		try {
+			return (int) limiter.take(wanted, tokens);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+}
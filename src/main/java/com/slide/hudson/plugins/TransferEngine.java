@@ -0,0 +1,343 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package com.slide.hudson.plugins;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Runs the file transfers to a single share on a bounded pool of worker
+ * threads. The size of the pool is configured on the {@link CIFSShare}. The
+ * pool belongs to the share, not to the engine: all publishes to the share
+ * in this JVM queue their transfers on the same workers, so concurrent
+ * builds don't multiply the connections the share has to serve.
+ * </p>
+ * <p>
+ * Failed transfers are retried according to the {@link RetryPolicy} of the
+ * share, and a {@link CircuitBreaker} makes the remaining transfers fail fast
+ * once the share stopped responding. Each engine, and so each publish, has a
+ * breaker of its own: a share failing during one build doesn't fail the
+ * transfers of other builds without trying.
+ * </p>
+ * <p>
+ * Transfers fanned out to additional shares run on the same pool. Before a
+ * failed transfer is retried the shares it failed on are reset.
+ * </p>
+ */
+public class TransferEngine {
+	/**
+	 * How many transfers per worker thread may be queued by a {@link Run}.
+	 */
+	private static final int MAX_PENDING_PER_WORKER = 100;
+
+	/** How long an unused worker thread is kept, in seconds. */
+	private static final long WORKER_IDLE_TIMEOUT = 60;
+
+	/** The worker pools by the session key of their share. */
+	private static final Map<String, ThreadPoolExecutor> POOLS = new HashMap<String, ThreadPoolExecutor>();
+
+	private final CIFSShare share;
+	private final List<CIFSShare> additionalShares;
+	private final ThreadPoolExecutor executor;
+	/** The transfers of this engine which are queued or running. */
+	private final Set<Future<Integer>> submitted = Collections
+			.synchronizedSet(new HashSet<Future<Integer>>());
+	private final RetryPolicy retryPolicy;
+	private final CircuitBreaker circuitBreaker;
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger retried = new AtomicInteger();
+
+	/**
+	 * @param share
+	 *            the share which configures the pool, the retries and the
+	 *            circuit breaker
+	 * @param additionalShares
+	 *            the other shares the transfers fan out to
+	 */
+	public TransferEngine(final CIFSShare share,
+			List<CIFSShare> additionalShares) {
+		this.share = share;
+		this.additionalShares = new ArrayList<CIFSShare>(additionalShares);
+		retryPolicy = share.getRetryPolicy();
+		circuitBreaker = new CircuitBreaker(share.getCircuitBreakerThreshold());
+		executor = getPool(share);
+	}
+
+	/**
+	 * Gets the worker pool of a share, creating it if needed. Its threads
+	 * end when they are idle, and it follows changes of the configured
+	 * number of workers.
+	 */
+	private static ThreadPoolExecutor getPool(final CIFSShare share) {
+		int workers = share.getWorkers();
+		synchronized (POOLS) {
+			ThreadPoolExecutor pool = POOLS.get(share.getSessionKey());
+			if (pool == null) {
+				pool = new ThreadPoolExecutor(workers, workers,
+						WORKER_IDLE_TIMEOUT, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(),
+						new ThreadFactory() {
+							private final AtomicInteger count = new AtomicInteger();
+
+							public Thread newThread(Runnable r) {
+								Thread t = new Thread(r, "CIFS upload to "
+										+ share.getDisplayUrl() + " #"
+										+ count.incrementAndGet());
+								t.setDaemon(true);
+								return t;
+							}
+						});
+				pool.allowCoreThreadTimeOut(true);
+				POOLS.put(share.getSessionKey(), pool);
+			} else if (workers > pool.getMaximumPoolSize()) {
+				pool.setMaximumPoolSize(workers);
+				pool.setCorePoolSize(workers);
+			} else if (workers < pool.getMaximumPoolSize()) {
+				pool.setCorePoolSize(workers);
+				pool.setMaximumPoolSize(workers);
+			}
+			return pool;
+		}
+	}
+
+	/**
+	 * Starts a run which transfers can be added to while the earlier ones are
+	 * already running.
+	 * 
+	 * @param logger
+	 *            the logger to report failures to
+	 */
+	public Run start(PrintStream logger) {
+		return new Run(logger);
+	}
+
+	/**
+	 * @return the number of files which could not be transferred so far
+	 */
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return the number of retried transfer attempts so far
+	 */
+	public int getRetried() {
+		return retried.get();
+	}
+
+	/**
+	 * @return how often the circuit breaker tripped so far
+	 */
+	public int getTrips() {
+		return circuitBreaker.getTrips();
+	}
+
+	/**
+	 * @return the number of transfers rejected by the tripped circuit breaker
+	 */
+	public int getRejected() {
+		return circuitBreaker.getRejected();
+	}
+
+	/**
+	 * Cancels the transfers of this engine. Transfers still running are
+	 * interrupted, the workers are left to the other publishes to the share.
+	 */
+	public void shutdown() {
+		synchronized (submitted) {
+			for (Future<Integer> result : submitted) {
+				result.cancel(true);
+			}
+			submitted.clear();
+		}
+	}
+
+	/**
+	 * A single transfer, returning the number of files transferred.
+	 */
+	public static abstract class Transfer implements Callable<Integer> {
+		private final String name;
+
+		protected Transfer(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return the name of the transferred file, used for reporting
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the shares the last attempt failed on, which are reset
+		 *         before the next attempt, or null if they are not known and
+		 *         all shares are reset
+		 */
+		protected List<CIFSShare> getFailedShares() {
+			return null;
+		}
+
+		/**
+		 * Called once the transfer failed for good, after all retries.
+		 */
+		protected void failed(Throwable cause) {
+		}
+	}
+
+	/**
+	 * Transfers added over time. Failures are logged in the order the
+	 * transfers were added, no matter in which order they actually happened.
+	 * Only a limited number of transfers is queued, adding more waits for the
+	 * oldest ones to finish.
+	 */
+	public class Run {
+		private final PrintStream logger;
+		private final LinkedList<Transfer> transfers = new LinkedList<Transfer>();
+		private final LinkedList<Future<Integer>> results = new LinkedList<Future<Integer>>();
+		private int count;
+
+		Run(PrintStream logger) {
+			this.logger = logger;
+		}
+
+		/**
+		 * Queues transfers.
+		 * 
+		 * @throws InterruptedException
+		 *             if the build was aborted, the pending transfers are
+		 *             cancelled
+		 */
+		public void submit(List<Transfer> batch) throws InterruptedException {
+			for (Transfer transfer : batch) {
+				transfers.add(transfer);
+				Future<Integer> result = executor.submit(new RetryingTransfer(
+						transfer));
+				submitted.add(result);
+				results.add(result);
+			}
+			int maxPending = share.getWorkers() * MAX_PENDING_PER_WORKER;
+			while (!results.isEmpty()
+					&& (results.size() > maxPending || results.getFirst()
+							.isDone())) {
+				collect();
+			}
+		}
+
+		/**
+		 * Waits for all transfers to finish.
+		 * 
+		 * @return the number of files transferred
+		 * @throws InterruptedException
+		 *             if the build was aborted, the pending transfers are
+		 *             cancelled
+		 */
+		public int await() throws InterruptedException {
+			while (!results.isEmpty()) {
+				collect();
+			}
+			return count;
+		}
+
+		private void collect() throws InterruptedException {
+			Transfer transfer = transfers.removeFirst();
+			Future<Integer> result = results.removeFirst();
+			try {
+				count += result.get();
+			} catch (ExecutionException e) {
+				failed.incrementAndGet();
+				transfer.failed(e.getCause());
+				logger.println("Error uploading " + transfer.getName()
+						+ " - " + e.getCause().getMessage());
+			} catch (InterruptedException e) {
+				result.cancel(true);
+				for (Future<Integer> pending : results) {
+					pending.cancel(true);
+				}
+				throw e;
+			} finally {
+				submitted.remove(result);
+			}
+		}
+	}
+
+	/**
+	 * Runs a transfer, retrying it on failure.
+	 */
+	private class RetryingTransfer implements Callable<Integer> {
+		private final Transfer transfer;
+
+		RetryingTransfer(Transfer transfer) {
+			this.transfer = transfer;
+		}
+
+		public Integer call() throws Exception {
+			for (int attempt = 0;; attempt++) {
+				boolean probe = circuitBreaker.check();
+				try {
+					int count = transfer.call();
+					circuitBreaker.success();
+					return count;
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Exception e) {
+					circuitBreaker.failure();
+					if (attempt >= retryPolicy.getRetries()) {
+						throw e;
+					}
+					// connect again for the next attempt, if needed
+					List<CIFSShare> failed = transfer.getFailedShares();
+					if (failed == null) {
+						failed = new ArrayList<CIFSShare>(additionalShares);
+						failed.add(0, share);
+					}
+					for (CIFSShare failedShare : failed) {
+						failedShare.storage().reset(e);
+					}
+				} finally {
+					if (probe) {
+						circuitBreaker.endProbe();
+					}
+				}
+				retried.incrementAndGet();
+				Thread.sleep(retryPolicy.getDelay(attempt));
+			}
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package com.slide.hudson.plugins;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.RemoteInputStream;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * <p>
+ * The content of a file to upload, which can be read again from any offset
+ * so an interrupted upload can be resumed.
+ * </p>
+ * <p>
+ * Files on other nodes can optionally be compressed for the trip through the
+ * remoting channel.
+ * </p>
+ */
+public abstract class UploadSource {
+	private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(
+			Arrays.asList("zip", "gz", "tgz", "bz2", "tbz2", "xz", "txz",
+					"lz", "lzma", "z", "zst", "7z", "rar", "cab", "jar",
+					"war", "ear", "hpi", "jpi", "apk", "nupkg", "whl", "msi",
+					"dmg", "png", "jpg", "jpeg", "gif", "webp", "mp3", "mp4",
+					"mkv", "avi", "mov", "ogg", "flac", "docx", "xlsx",
+					"pptx", "odt", "ods"));
+
+	/**
+	 * @return the name of the file
+	 */
+	public abstract String getName();
+
+	/**
+	 * @return the size of the file in bytes, or -1 if unknown
+	 */
+	public abstract long getLength();
+
+	/**
+	 * @return the last modification time in milliseconds since the epoch, or
+	 *         0 if unknown
+	 */
+	public abstract long getLastModified();
+
+	/**
+	 * Opens the file for reading, starting at the given offset.
+	 */
+	public abstract InputStream open(long offset) throws IOException,
+			InterruptedException;
+
+	/**
+	 * A file on the local file system.
+	 */
+	public static UploadSource of(final File file) {
+		return new UploadSource() {
+			public String getName() {
+				return file.getName();
+			}
+
+			public long getLength() {
+				return file.length();
+			}
+
+			public long getLastModified() {
+				return file.lastModified();
+			}
+
+			public InputStream open(long offset) throws IOException {
+				return openAt(file, offset);
+			}
+		};
+	}
+
+	/**
+	 * A file on another node with already known attributes, which is
+	 * streamed through the remoting channel.
+	 * 
+	 * @param length
+	 *            the size of the file in bytes, or -1 if unknown
+	 * @param lastModified
+	 *            the last modification time, or 0 if unknown
+	 * @param compress
+	 *            true if the content should be compressed on the node and
+	 *            decompressed here, unless the file is already compressed
+	 */
+	public static UploadSource of(final FilePath filePath, final long length,
+			final long lastModified, boolean compress) {
+		final boolean compressed = compress
+				&& !isCompressed(filePath.getName());
+		return new UploadSource() {
+			public String getName() {
+				return filePath.getName();
+			}
+
+			public long getLength() {
+				return length;
+			}
+
+			public long getLastModified() {
+				return lastModified;
+			}
+
+			public InputStream open(long offset) throws IOException,
+					InterruptedException {
+				if (compressed) {
+					InputStream in = filePath.act(new OffsetReader(offset,
+							true));
+					return new InflaterInputStream(in, new Inflater(), 65536) {
+						@Override
+						public void close() throws IOException {
+							super.close();
+							inf.end();
+						}
+					};
+				}
+				if (offset == 0) {
+					return filePath.read();
+				}
+				// skip on the node, so only the remaining bytes are sent
+				return filePath.act(new OffsetReader(offset, false));
+			}
+		};
+	}
+
+	/**
+	 * Checks whether a file is most likely already compressed, judging by its
+	 * extension, so compressing it again would only waste time.
+	 */
+	static boolean isCompressed(String name) {
+		int index = name.lastIndexOf('.');
+		if (index == -1) {
+			return false;
+		}
+		return COMPRESSED_EXTENSIONS.contains(name.substring(index + 1)
+				.toLowerCase(Locale.ENGLISH));
+	}
+
+	private static InputStream openAt(File file, long offset)
+			throws IOException {
+		InputStream in = new FileInputStream(file);
+		long skipped = 0;
+		while (skipped < offset) {
+			long count = in.skip(offset - skipped);
+			if (count <= 0) {
+				in.close();
+				throw new IOException(file + " is shorter than " + offset
+						+ " bytes");
+			}
+			skipped += count;
+		}
+		return in;
+	}
+
+	private static final class OffsetReader implements
+			FileCallable<InputStream> {
+		private static final long serialVersionUID = 1L;
+
+		private final long offset;
+		private final boolean compress;
+
+		OffsetReader(long offset, boolean compress) {
+			this.offset = offset;
+			this.compress = compress;
+		}
+
+		public InputStream invoke(File f, VirtualChannel channel)
+				throws IOException {
+			InputStream in = openAt(f, offset);
+			if (compress) {
+				in = new DeflaterInputStream(in, new Deflater(
+						Deflater.BEST_SPEED), 65536) {
+					@Override
+					public void close() throws IOException {
+						super.close();
+						def.end();
+					}
+				};
+			}
+			return new RemoteInputStream(in);
+		}
+	}
+}
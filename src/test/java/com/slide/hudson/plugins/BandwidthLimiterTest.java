@@ -0,0 +1,126 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Calendar;
+
+import org.junit.Test;
+
+public class BandwidthLimiterTest {
+	@Test
+	public void parsesWindows() {
+		assertArrayEquals(new int[] { 8 * 60, 18 * 60, 22 * 60, 2 * 60 + 30 },
+				BandwidthLimiter.parseSchedule("08:00-18:00, 22-2:30"));
+		assertArrayEquals(new int[0], BandwidthLimiter.parseSchedule(" "));
+		assertArrayEquals(new int[0], BandwidthLimiter.parseSchedule(null));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAWindowWithoutEnd() {
+		BandwidthLimiter.parseSchedule("08:00");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAnInvalidTime() {
+		BandwidthLimiter.parseSchedule("08:00-24:30");
+	}
+
+	@Test
+	public void limitsWithinTheWindows() {
+		int[] windows = BandwidthLimiter.parseSchedule("08:00-18:00");
+		assertTrue(BandwidthLimiter.isLimited(windows, at(8, 0)));
+		assertTrue(BandwidthLimiter.isLimited(windows, at(17, 59)));
+		assertFalse(BandwidthLimiter.isLimited(windows, at(18, 0)));
+		assertFalse(BandwidthLimiter.isLimited(windows, at(7, 59)));
+	}
+
+	@Test
+	public void windowsMaySpanMidnight() {
+		int[] windows = BandwidthLimiter.parseSchedule("22:00-02:00");
+		assertTrue(BandwidthLimiter.isLimited(windows, at(23, 0)));
+		assertTrue(BandwidthLimiter.isLimited(windows, at(1, 0)));
+		assertFalse(BandwidthLimiter.isLimited(windows, at(12, 0)));
+	}
+
+	@Test
+	public void anEmptyScheduleAlwaysLimits() {
+		assertTrue(BandwidthLimiter.isLimited(new int[0], at(3, 0)));
+	}
+
+	@Test
+	public void grantsNoMoreThanTheBurst() throws Exception {
+		CIFSShare share = LocalShares.create("limited", "share");
+		share.setBandwidthLimit(64);
+		BandwidthLimiter limiter = BandwidthLimiter.of(share);
+		long granted = limiter.take(1024 * 1024, null);
+		assertTrue("granted " + granted, granted >= 1
+				&& granted <= 64 * 1024 / 8);
+	}
+
+	@Test
+	public void anUnlimitedShareGetsEverything() throws Exception {
+		CIFSShare share = LocalShares.create("unlimited", "share");
+		assertEquals(1024 * 1024, BandwidthLimiter.of(share).take(
+				1024 * 1024, null));
+	}
+
+	@Test
+	public void aLimiterUsedByANodeIsNotEvicted() throws Exception {
+		CIFSShare share = LocalShares.create("node", "share");
+		share.setBandwidthLimit(64);
+		BandwidthLimiter limiter = BandwidthLimiter.of(share);
+		limiter.lastUsed = System.currentTimeMillis() - 2
+				* BandwidthLimiter.IDLE_TIMEOUT;
+
+		// uploads from a node only use the master's buckets
+		BandwidthLimiter.BUCKETS.take(share.getSessionKey(), 1);
+
+		assertSame(limiter, BandwidthLimiter.of(share));
+	}
+
+	@Test
+	public void anIdleLimiterIsEvicted() throws Exception {
+		CIFSShare share = LocalShares.create("idle", "share");
+		share.setBandwidthLimit(64);
+		BandwidthLimiter limiter = BandwidthLimiter.of(share);
+		limiter.lastUsed = System.currentTimeMillis() - 2
+				* BandwidthLimiter.IDLE_TIMEOUT;
+
+		assertNotSame(limiter, BandwidthLimiter.of(share));
+	}
+
+	private static Calendar at(int hour, int minute) {
+		Calendar time = Calendar.getInstance();
+		time.set(Calendar.HOUR_OF_DAY, hour);
+		time.set(Calendar.MINUTE, minute);
+		return time;
+	}
+}
@@ -0,0 +1,103 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Measures how the transfer buffer size affects the upload of a single large
+ * file to a share stood in for by {@link LocalStorage}. Every write to the
+ * share is delayed by the latency, so small buffers pay for it more often,
+ * like SMB requests do on a real network.
+ * </p>
+ * <p>
+ * The time is per upload of a file of {@link #fileSize} MiB, so the
+ * throughput in MiB/s is the file size divided by the time in seconds.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class BufferSizeBenchmark {
+	/** The transfer buffer size in KiB. */
+	@Param( { "8", "64", "1024" })
+	public int bufferSize;
+
+	/** Whether the buffer grows with the throughput. */
+	@Param( { "false", "true" })
+	public boolean adaptiveBuffer;
+
+	/** The delay of every request to the share in milliseconds. */
+	@Param( { "0", "1" })
+	public long latency;
+
+	/** The size of the uploaded file in MiB. */
+	@Param( { "64" })
+	public int fileSize;
+
+	private File root;
+	private File file;
+	private CIFSShare share;
+
+	@Setup
+	public void setUp() throws Exception {
+		root = LocalShares.createTempDir("buffer");
+		file = LocalShares.write(new File(root, "source/large.bin"),
+				fileSize * 1024 * 1024);
+		LocalShares.enable(new File(root, "shares"), latency);
+		share = LocalShares.create("server", "share");
+		share.setBufferSize(bufferSize);
+		share.setAdaptiveBuffer(adaptiveBuffer);
+		new File(root, "shares/server/share").mkdirs();
+	}
+
+	@TearDown
+	public void tearDown() {
+		LocalShares.disable();
+		LocalShares.delete(root);
+	}
+
+	@Benchmark
+	public void uploadLargeFile() throws Exception {
+		share.uploadFile(file, "");
+	}
+}
@@ -0,0 +1,137 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import hudson.FilePath;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CIFSShareTest {
+	/** The number of bytes the share receives before the connection breaks. */
+	private static final int BREAK_AFTER = 100000;
+
+	private File root;
+	private File source;
+	private File dir;
+	private final AtomicInteger appends = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+		root = LocalShares.createTempDir("share");
+		LocalShares.enable(new File(root, "shares"), 0);
+		source = LocalShares.write(new File(root, "source/data.bin"), 300000);
+		dir = new File(root, "shares/server/share/dir");
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		LocalShares.disable();
+		LocalShares.delete(root);
+	}
+
+	@Test
+	public void aBrokenUploadIsResumed() throws Exception {
+		CIFSShare share = createBreakingShare();
+		share.setResumeAttempts(1);
+		share.setRetryDelay(1);
+
+		share.write(UploadSource.of(source), "dir");
+
+		assertEquals(1, appends.get());
+		assertArrayEquals(LocalShares.read(source), LocalShares.read(new File(
+				dir, "data.bin")));
+	}
+
+	@Test
+	public void aBrokenUploadFailsWithoutResumeAttempts() throws Exception {
+		CIFSShare share = createBreakingShare();
+
+		try {
+			share.write(UploadSource.of(source), "dir");
+			fail("the upload should have failed");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(0, appends.get());
+	}
+
+	@Test
+	public void aCompressedRelayUploadsTheContent() throws Exception {
+		CIFSShare share = LocalShares.create("server", "share");
+		share.setCompressTransfer(true);
+		FilePath file = LocalShares.workspace(source.getParentFile()).child(
+				source.getName());
+
+		share.uploadFile(file, "dir", source.length(), source.lastModified());
+
+		assertArrayEquals(LocalShares.read(source), LocalShares.read(new File(
+				dir, "data.bin")));
+	}
+
+	/**
+	 * Creates a share whose connection breaks down once while the first
+	 * {@link #BREAK_AFTER} bytes of a new file are written.
+	 */
+	private CIFSShare createBreakingShare() {
+		return LocalShares.create("server", "share", new LocalStorage(
+				new File(root, "shares/server/share"), 0) {
+			@Override
+			public OutputStream create(String path) throws IOException {
+				return new FilterOutputStream(super.create(path)) {
+					private int written;
+
+					@Override
+					public void write(byte[] b, int off, int len)
+							throws IOException {
+						int count = Math.min(len, BREAK_AFTER - written);
+						out.write(b, off, count);
+						written += count;
+						if (count < len) {
+							throw new IOException("connection reset");
+						}
+					}
+				};
+			}
+
+			@Override
+			public OutputStream append(String path) throws IOException {
+				assertEquals(BREAK_AFTER, length(path));
+				appends.incrementAndGet();
+				return super.append(path);
+			}
+		});
+	}
+}
@@ -0,0 +1,118 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChunkedUploaderTest {
+	private File root;
+	private File source;
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		root = LocalShares.createTempDir("chunked");
+		LocalShares.enable(new File(root, "shares"), 0);
+		// not a multiple of the number of chunks
+		source = LocalShares.write(new File(root, "source/data.bin"),
+				3 * 1024 * 1024 + 7);
+		dir = new File(root, "shares/server/share/dir");
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		LocalShares.disable();
+		LocalShares.delete(root);
+	}
+
+	@Test
+	public void largeFilesAreUploadedInChunks() throws Exception {
+		CIFSShare share = LocalShares.create("server", "share");
+		share.setChunkThreshold(1);
+		share.setChunks(4);
+
+		share.uploadFile(source, "dir");
+
+		assertArrayEquals(LocalShares.read(source), LocalShares.read(new File(
+				dir, "data.bin")));
+	}
+
+	@Test
+	public void aFailedRangeIsWrittenAgain() throws Exception {
+		final AtomicBoolean failed = new AtomicBoolean();
+		CIFSShare share = LocalShares.create("server", "share",
+				new LocalStorage(new File(root, "shares/server/share"), 0) {
+					@Override
+					public RandomAccess openRandom(String path)
+							throws IOException {
+						final RandomAccess file = super.openRandom(path);
+						return new RandomAccess() {
+							public void seek(long position) throws IOException {
+								file.seek(position);
+							}
+
+							public int read(byte[] b, int off, int len)
+									throws IOException {
+								return file.read(b, off, len);
+							}
+
+							public void write(byte[] b, int off, int len)
+									throws IOException {
+								if (failed.compareAndSet(false, true)) {
+									throw new IOException("connection reset");
+								}
+								file.write(b, off, len);
+							}
+
+							public void setLength(long length)
+									throws IOException {
+								file.setLength(length);
+							}
+
+							public void close() throws IOException {
+								file.close();
+							}
+						};
+					}
+				});
+		share.setChunks(4);
+		share.setResumeAttempts(1);
+
+		new ChunkedUploader(share, source, "dir").upload();
+
+		assertTrue(failed.get());
+		assertArrayEquals(LocalShares.read(source), LocalShares.read(new File(
+				dir, "data.bin")));
+	}
+}
@@ -0,0 +1,71 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+	@Test
+	public void tripsAfterConsecutiveFailures() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(2);
+		breaker.check();
+		breaker.failure();
+		breaker.check();
+		breaker.failure();
+		try {
+			breaker.check();
+			fail("the breaker should be open");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(1, breaker.getTrips());
+		assertEquals(1, breaker.getRejected());
+	}
+
+	@Test
+	public void successResetsTheFailures() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(2);
+		breaker.failure();
+		breaker.success();
+		breaker.failure();
+		assertFalse(breaker.check());
+		assertEquals(0, breaker.getTrips());
+	}
+
+	@Test
+	public void thresholdZeroNeverTrips() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(0);
+		for (int i = 0; i < 100; i++) {
+			breaker.failure();
+		}
+		assertFalse(breaker.check());
+		assertEquals(0, breaker.getTrips());
+	}
+}
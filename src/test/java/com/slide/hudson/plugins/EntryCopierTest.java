@@ -0,0 +1,275 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Publishes a workspace to shares on {@link LocalStorage}, once for each way
+ * an entry can be published.
+ * </p>
+ */
+public class EntryCopierTest {
+	private File root;
+	private File workspace;
+	private File out;
+	private CIFSShare share;
+	private ByteArrayOutputStream log;
+	private int skipped;
+
+	@Before
+	public void setUp() throws Exception {
+		root = LocalShares.createTempDir("copier");
+		LocalShares.enable(new File(root, "shares"), 0);
+		share = LocalShares.create("server", "share");
+		share.setWorkers(2);
+		share.setRetries(0);
+		workspace = new File(root, "workspace");
+		LocalShares.write(new File(workspace, "dist/a.txt"), 100);
+		LocalShares.write(new File(workspace, "dist/b.txt"), 200);
+		LocalShares.write(new File(workspace, "dist/sub/c.txt"), 300);
+		out = new File(root, "shares/server/share/out");
+		log = new ByteArrayOutputStream();
+	}
+
+	@After
+	public void tearDown() {
+		LocalShares.disable();
+		LocalShares.delete(root);
+	}
+
+	@Test
+	public void publishCopiesTheTree() throws Exception {
+		assertEquals(3, publish(entry(), share));
+
+		assertPublished(out);
+	}
+
+	@Test
+	public void incrementalPublishSkipsUnchangedFiles() throws Exception {
+		Entry entry = entry();
+		entry.setIncremental(true);
+		publish(entry, share);
+		LocalShares.write(new File(workspace, "dist/b.txt"), 250);
+
+		assertEquals(1, publish(entry, share));
+		assertEquals(2, skipped);
+		assertPublished(out);
+	}
+
+	@Test
+	public void checksumPublishSkipsUnchangedContent() throws Exception {
+		Entry entry = entry();
+		entry.setChecksums(true);
+		publish(entry, share);
+		assertTrue(new File(out, Manifest.FILE_NAME).isFile());
+		// touched, but with the same content
+		new File(workspace, "dist/a.txt").setLastModified(System
+				.currentTimeMillis() + 60000);
+
+		assertEquals(0, publish(entry, share));
+		assertEquals(3, skipped);
+		assertPublished(out);
+	}
+
+	@Test
+	public void mirrorPublishRemovesStaleFiles() throws Exception {
+		Entry entry = entry();
+		entry.setMirror(true);
+		publish(entry, share);
+		LocalShares.write(new File(out, "gone/d.txt"), 10);
+		new File(workspace, "dist/a.txt").delete();
+
+		publish(entry, share);
+
+		assertFalse(new File(out, "a.txt").exists());
+		assertFalse(new File(out, "gone").exists());
+		assertTrue(new File(out, "b.txt").isFile());
+		assertTrue(new File(out, "sub/c.txt").isFile());
+	}
+
+	@Test
+	public void atomicPublishSwapsTheDirectoryIn() throws Exception {
+		LocalShares.write(new File(out, "old.txt"), 10);
+		Entry entry = entry();
+		entry.setAtomic(true);
+		entry.setKeepPrevious(true);
+
+		assertEquals(3, publish(entry, share));
+
+		assertPublished(out);
+		assertFalse(new File(out, "old.txt").exists());
+		File parent = out.getParentFile();
+		assertTrue(new File(parent, ".out" + EntryCopier.PREVIOUS_SUFFIX
+				+ "/old.txt").isFile());
+		assertFalse(new File(parent, ".out" + EntryCopier.STAGING_SUFFIX)
+				.exists());
+	}
+
+	@Test
+	public void atomicPublishKeepsTheContentIfFilesFail() throws Exception {
+		LocalShares.write(new File(out, "old.txt"), 10);
+		CIFSShare failing = LocalShares.create("server", "share",
+				new LocalStorage(new File(root, "shares/server/share"), 0) {
+					@Override
+					public OutputStream create(String path) throws IOException {
+						if (path.endsWith("b.txt")) {
+							throw new IOException("disk full");
+						}
+						return super.create(path);
+					}
+				});
+		failing.setRetries(0);
+		Entry entry = entry();
+		entry.setAtomic(true);
+
+		publish(entry, failing);
+
+		assertTrue(new File(out, "old.txt").isFile());
+		assertFalse(new File(out, "a.txt").exists());
+	}
+
+	@Test
+	public void atomicPublishRollsBackAFailedSwap() throws Exception {
+		LocalShares.write(new File(out, "old.txt"), 10);
+		CIFSShare failing = LocalShares.create("server", "share",
+				new LocalStorage(new File(root, "shares/server/share"), 0) {
+					@Override
+					public void rename(String from, String to)
+							throws IOException {
+						if (from.contains(EntryCopier.STAGING_SUFFIX)) {
+							throw new IOException("sharing violation");
+						}
+						super.rename(from, to);
+					}
+				});
+		Entry entry = entry();
+		entry.setAtomic(true);
+
+		try {
+			publish(entry, failing);
+			fail("the swap should have failed");
+		} catch (IOException e) {
+			// expected
+		}
+
+		assertTrue(new File(out, "old.txt").isFile());
+		assertFalse(new File(out, "a.txt").exists());
+	}
+
+	@Test
+	public void archivePublishWritesOneArchive() throws Exception {
+		Entry entry = entry();
+		entry.setArchiveFormat("zip");
+		entry.setArchiveName("dist.zip");
+
+		assertEquals(3, publish(entry, share));
+
+		assertArrayEquals(new String[] { "dist.zip" }, out.list());
+		ZipFile zip = new ZipFile(new File(out, "dist.zip"));
+		try {
+			List<String> names = new ArrayList<String>();
+			for (ZipEntry zipEntry : Collections.list(zip.entries())) {
+				names.add(zipEntry.getName());
+			}
+			Collections.sort(names);
+			assertEquals(Arrays.asList("a.txt", "b.txt", "sub/c.txt"), names);
+			assertEquals(300, zip.getEntry("sub/c.txt").getSize());
+		} finally {
+			zip.close();
+		}
+	}
+
+	@Test
+	public void publishToSeveralSharesCopiesTheTreeToAll() throws Exception {
+		CIFSShare other = LocalShares.create("other", "share");
+		EntryCopier copier = new EntryCopier(
+				LocalShares.workspace(workspace),
+				new HashMap<String, String>(), new StreamTaskListener(log),
+				share, false, Collections.singletonList(other), new FanOut(
+						FanOut.WAIT));
+		try {
+			assertEquals(3, copier.copy(entry()));
+		} finally {
+			copier.close();
+		}
+
+		assertPublished(out);
+		assertPublished(new File(root, "shares/other/share/out"));
+	}
+
+	private static Entry entry() {
+		Entry entry = new Entry();
+		entry.setSourceFile("dist");
+		entry.setFilePath("out");
+		return entry;
+	}
+
+	/**
+	 * Publishes an entry of the workspace.
+	 * 
+	 * @return the number of files uploaded
+	 */
+	private int publish(Entry entry, CIFSShare target) throws Exception {
+		EntryCopier copier = new EntryCopier(LocalShares
+				.workspace(workspace), new HashMap<String, String>(),
+				new StreamTaskListener(log), target, false, Collections
+						.<CIFSShare> emptyList(), new FanOut(FanOut.WAIT));
+		try {
+			return copier.copy(entry);
+		} finally {
+			skipped = copier.getSkippedCount();
+			copier.close();
+		}
+	}
+
+	private void assertPublished(File dir) throws IOException {
+		for (String name : new String[] { "a.txt", "b.txt", "sub/c.txt" }) {
+			assertArrayEquals(LocalShares.read(new File(workspace, "dist/"
+					+ name)), LocalShares.read(new File(dir, name)));
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FanOutTest {
+	private File root;
+	private File source;
+	private CIFSShare fast;
+	private CIFSShare slow;
+	private final AtomicInteger slowCreates = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+		root = LocalShares.createTempDir("fanout");
+		LocalShares.enable(new File(root, "shares"), 0);
+		// many more chunks than a share may fall behind
+		source = LocalShares.write(new File(root, "source/data.bin"),
+				4 * 1024 * 1024);
+		fast = LocalShares.create("fast", "share");
+		fast.storage().mkdirs("dir");
+		slow = LocalShares.create("slow", "share", new LocalStorage(new File(
+				root, "shares/slow/share"), 0) {
+			@Override
+			public OutputStream create(String path) throws IOException {
+				// the first file takes long to open
+				if (slowCreates.incrementAndGet() == 1) {
+					try {
+						Thread.sleep(500);
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+				return super.create(path);
+			}
+		});
+		slow.storage().mkdirs("dir");
+	}
+
+	@After
+	public void tearDown() {
+		LocalShares.disable();
+		LocalShares.delete(root);
+	}
+
+	@Test
+	public void waitWritesTheFileToAllSharesAtOnce() throws Exception {
+		new FanOut(FanOut.WAIT).upload(UploadSource.of(source), Arrays
+				.asList(fast, slow), "dir");
+
+		assertEquals(1, slowCreates.get());
+		assertUploaded("fast");
+		assertUploaded("slow");
+	}
+
+	@Test
+	public void detachUploadsToASlowShareSeparately() throws Exception {
+		new FanOut(FanOut.DETACH).upload(UploadSource.of(source), Arrays
+				.asList(fast, slow), "dir");
+
+		assertEquals(2, slowCreates.get());
+		assertUploaded("fast");
+		assertUploaded("slow");
+	}
+
+	@Test
+	public void aFailingShareDoesNotStopTheOthers() throws Exception {
+		CIFSShare failing = LocalShares.create("failing", "share",
+				new LocalStorage(new File(root, "shares/failing/share"), 0) {
+					@Override
+					public OutputStream create(String path)
+							throws IOException {
+						throw new IOException("access denied");
+					}
+				});
+
+		try {
+			new FanOut(FanOut.WAIT).upload(UploadSource.of(source), Arrays
+					.asList(fast, failing), "dir");
+			fail("the upload should have failed");
+		} catch (FanOutException e) {
+			assertNull(e.getFailures().get(0));
+			assertNotNull(e.getFailures().get(1));
+		}
+		assertUploaded("fast");
+	}
+
+	private void assertUploaded(String server) throws IOException {
+		assertArrayEquals(LocalShares.read(source), LocalShares.read(new File(
+				root, "shares/" + server + "/share/dir/data.bin")));
+	}
+}
@@ -0,0 +1,49 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+public class FileWalkerTest {
+	@Test
+	public void patternsAreSeparatedByCommasAndWhitespace() {
+		assertArrayEquals(new String[] { "a/**", "b/*.txt", "c", "d" },
+				FileWalker.getPatterns("a/**, b/*.txt c\n\td"));
+	}
+
+	@Test
+	public void directoryPatternsIncludeEverythingBelow() {
+		assertArrayEquals(new String[] { "out/**", "lib/*.jar" }, FileWalker
+				.getPatterns("out/ lib\\*.jar"));
+	}
+
+	@Test
+	public void emptyPatternsAreSkipped() {
+		assertArrayEquals(new String[] { "a" }, FileWalker
+				.getPatterns(" ,a,, "));
+		assertArrayEquals(new String[0], FileWalker.getPatterns(""));
+	}
+}
@@ -0,0 +1,194 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import hudson.FilePath;
+import hudson.remoting.LocalChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>
+ * Sets up shares backed by {@link LocalStorage} in a temporary directory,
+ * for the tests and benchmarks.
+ * </p>
+ */
+final class LocalShares {
+	private static final ExecutorService CHANNEL_THREADS = Executors
+			.newCachedThreadPool();
+
+	private LocalShares() {
+	}
+
+	/**
+	 * Creates an empty temporary directory.
+	 */
+	static File createTempDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Could not create " + dir);
+		}
+		return dir;
+	}
+
+	/**
+	 * Redirects all shares to local storage below a directory.
+	 * 
+	 * @param latency
+	 *            the delay of every request in milliseconds
+	 */
+	static void enable(File root, long latency) {
+		System.setProperty(LocalStorage.ROOT_PROPERTY, root.getPath());
+		System.setProperty(LocalStorage.LATENCY_PROPERTY, String
+				.valueOf(latency));
+	}
+
+	static void disable() {
+		System.clearProperty(LocalStorage.ROOT_PROPERTY);
+		System.clearProperty(LocalStorage.LATENCY_PROPERTY);
+	}
+
+	/**
+	 * Creates a share whose files are stored in the directory
+	 * <code>server/dir</code> below the local storage root.
+	 */
+	static CIFSShare create(String server, String dir) {
+		CIFSShare share = new CIFSShare();
+		share.setServer(server);
+		share.setDir(dir);
+		return share;
+	}
+
+	/**
+	 * Creates a share like {@link #create(String, String)} which uses the
+	 * given storage, so a test can make its requests fail.
+	 */
+	static CIFSShare create(String server, String dir, final Storage storage) {
+		CIFSShare share = new CIFSShare() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			Storage storage() {
+				return storage;
+			}
+		};
+		share.setServer(server);
+		share.setDir(dir);
+		return share;
+	}
+
+	/**
+	 * Gets a directory as the workspace of a build node, whose files are
+	 * read through a channel.
+	 */
+	static FilePath workspace(File dir) {
+		return new FilePath(new LocalChannel(CHANNEL_THREADS), dir.getPath());
+	}
+
+	/**
+	 * Writes a file of the given size, creating its directory if needed.
+	 */
+	static File write(File file, int size) throws IOException {
+		file.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			byte[] data = new byte[Math.min(size, 65536)];
+			for (int i = 0; i < data.length; i++) {
+				data[i] = (byte) i;
+			}
+			for (int done = 0; done < size; done += data.length) {
+				out.write(data, 0, Math.min(data.length, size - done));
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Writes a tree of directories, each holding files of the given size.
+	 * 
+	 * @param depth
+	 *            the number of directory levels below the root
+	 * @param width
+	 *            the number of subdirectories of each directory
+	 * @param files
+	 *            the number of files in each directory
+	 * @return the number of files written
+	 */
+	static int writeTree(File root, int depth, int width, int files,
+			int size) throws IOException {
+		root.mkdirs();
+		int count = 0;
+		for (int i = 0; i < files; i++) {
+			write(new File(root, "file" + i + ".bin"), size);
+			count++;
+		}
+		if (depth > 0) {
+			for (int i = 0; i < width; i++) {
+				count += writeTree(new File(root, "dir" + i), depth - 1,
+						width, files, size);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Reads the content of a file.
+	 */
+	static byte[] read(File file) throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[65536];
+			for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+				data.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return data.toByteArray();
+	}
+
+	/**
+	 * Deletes a directory and everything below it.
+	 */
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,80 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class ManifestTest {
+	@Test
+	public void survivesAWriteAndRead() throws Exception {
+		Manifest manifest = new Manifest();
+		manifest.put("a.txt", new Manifest.Record("0123abcd", 10));
+		manifest.put("dir/with space.txt", new Manifest.Record("ef45", 0));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		manifest.write(out);
+		Manifest read = Manifest.read(new ByteArrayInputStream(out
+				.toByteArray()));
+
+		assertEquals(new Manifest.Record("0123abcd", 10), read.get("a.txt"));
+		assertEquals(new Manifest.Record("ef45", 0), read
+				.get("dir/with space.txt"));
+	}
+
+	@Test
+	public void ignoresLinesItCannotParse() throws Exception {
+		Manifest read = Manifest.read(new ByteArrayInputStream(
+				"abcd x a.txt\nbroken\nef01 5 b.txt\n".getBytes("UTF-8")));
+
+		assertNull(read.get("a.txt"));
+		assertEquals(new Manifest.Record("ef01", 5), read.get("b.txt"));
+	}
+
+	@Test
+	public void recordsDifferInLengthOrDigest() {
+		Manifest.Record record = new Manifest.Record("abcd", 5);
+		assertEquals(record, new Manifest.Record("abcd", 5));
+		assertEquals(false, record.equals(new Manifest.Record("abcd", 6)));
+		assertEquals(false, record.equals(new Manifest.Record("abce", 5)));
+	}
+
+	@Test
+	public void retainsOnlyTheGivenPaths() {
+		Manifest manifest = new Manifest();
+		manifest.put("a", new Manifest.Record("1", 1));
+		manifest.put("b", new Manifest.Record("2", 2));
+
+		manifest.retainAll(Collections.singleton("b"));
+
+		assertNull(manifest.get("a"));
+		assertEquals(new Manifest.Record("2", 2), manifest.get("b"));
+	}
+}
@@ -0,0 +1,162 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Measures publishing typical trees of files to a share stood in for by
+ * {@link LocalStorage}, with a latency on every request like a file server
+ * across the network:
+ * </p>
+ * <ul>
+ * <li>many small files in one directory,</li>
+ * <li>a few huge files,</li>
+ * <li>a deep tree of directories.</li>
+ * </ul>
+ * <p>
+ * The uploads run on the {@link TransferEngine} with the configured number
+ * of workers, like the uploads of a publish. Purging is measured by
+ * {@link PurgeBenchmark}. Run the benchmarks with
+ * <code>mvn -Pbenchmark test</code> to compare builds of the plugin.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class PublishBenchmark {
+	/** The number of files uploaded concurrently. */
+	@Param( { "1", "8" })
+	public int workers;
+
+	/** The delay of every request to the share in milliseconds. */
+	@Param( { "1" })
+	public long latency;
+
+	private File root;
+	private File source;
+	private File shareDir;
+	private CIFSShare share;
+	private TransferEngine engine;
+	private PrintStream logger;
+
+	@Setup
+	public void setUp() throws Exception {
+		root = LocalShares.createTempDir("publish");
+		source = new File(root, "source");
+		LocalShares.writeTree(new File(source, "small"), 0, 0, 1000, 4096);
+		LocalShares.writeTree(new File(source, "huge"), 0, 0, 4,
+				32 * 1024 * 1024);
+		LocalShares.writeTree(new File(source, "deep"), 6, 2, 4, 16 * 1024);
+		LocalShares.enable(new File(root, "shares"), latency);
+		share = LocalShares.create("server", "share");
+		share.setWorkers(workers);
+		shareDir = new File(root, "shares/server/share");
+		engine = new TransferEngine(share, Collections
+				.<CIFSShare> emptyList());
+		logger = new PrintStream(new ByteArrayOutputStream());
+	}
+
+	@Setup(Level.Invocation)
+	public void clearShare() throws Exception {
+		LocalShares.delete(shareDir);
+		shareDir.mkdirs();
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine.shutdown();
+		LocalShares.disable();
+		LocalShares.delete(root);
+	}
+
+	@Benchmark
+	public int manySmallFiles() throws Exception {
+		return upload("small");
+	}
+
+	@Benchmark
+	public int fewHugeFiles() throws Exception {
+		return upload("huge");
+	}
+
+	@Benchmark
+	public int deepTree() throws Exception {
+		return upload("deep");
+	}
+
+	/**
+	 * Uploads a directory of the source tree to the same path on the share.
+	 * 
+	 * @return the number of files uploaded
+	 */
+	private int upload(String dir) throws Exception {
+		List<TransferEngine.Transfer> transfers = new ArrayList<TransferEngine.Transfer>();
+		addTransfers(new File(source, dir), dir, transfers);
+		TransferEngine.Run run = engine.start(logger);
+		run.submit(transfers);
+		return run.await();
+	}
+
+	private void addTransfers(File dir, final String destDir,
+			List<TransferEngine.Transfer> transfers) throws Exception {
+		share.storage().mkdirs(destDir);
+		for (final File file : dir.listFiles()) {
+			if (file.isDirectory()) {
+				addTransfers(file, destDir + "/" + file.getName(), transfers);
+				continue;
+			}
+			transfers.add(new TransferEngine.Transfer(file.getName()) {
+				public Integer call() throws Exception {
+					share.uploadFile(file, destDir);
+					return 1;
+				}
+			});
+		}
+	}
+}
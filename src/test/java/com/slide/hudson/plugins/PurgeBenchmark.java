@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Measures purging a deep tree of directories from a share stood in for by
+ * {@link LocalStorage}. The tree is written to the share before each purge,
+ * which is not measured.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class PurgeBenchmark {
+	/** The number of files and directories deleted concurrently. */
+	@Param( { "1", "8" })
+	public int workers;
+
+	/** The delay of every request to the share in milliseconds. */
+	@Param( { "1" })
+	public long latency;
+
+	/** The number of directory levels of the tree. */
+	@Param( { "6" })
+	public int depth;
+
+	private File root;
+	private File tree;
+	private PurgeEngine engine;
+
+	@Setup
+	public void setUp() throws Exception {
+		root = LocalShares.createTempDir("purge");
+		LocalShares.enable(root, latency);
+		CIFSShare share = LocalShares.create("server", "share");
+		share.setWorkers(workers);
+		tree = new File(root, "server/share/tree");
+		engine = new PurgeEngine(share, new PrintStream(
+				new ByteArrayOutputStream()));
+	}
+
+	@Setup(Level.Invocation)
+	public void writeTree() throws Exception {
+		LocalShares.writeTree(tree, depth, 2, 4, 1024);
+	}
+
+	@TearDown
+	public void tearDown() {
+		LocalShares.disable();
+		LocalShares.delete(root);
+	}
+
+	@Benchmark
+	public boolean purge() throws Exception {
+		engine.purge("tree");
+		return tree.exists();
+	}
+}
@@ -0,0 +1,111 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PurgeEngineTest {
+	private File root;
+	private File dir;
+	private PurgeEngine engine;
+
+	@Before
+	public void setUp() throws Exception {
+		root = LocalShares.createTempDir("purge");
+		LocalShares.enable(root, 0);
+		CIFSShare share = LocalShares.create("server", "share");
+		share.setWorkers(4);
+		dir = new File(root, "server/share");
+		engine = new PurgeEngine(share, new PrintStream(
+				new ByteArrayOutputStream()));
+	}
+
+	@After
+	public void tearDown() {
+		LocalShares.disable();
+		LocalShares.delete(root);
+	}
+
+	@Test
+	public void purgeDeletesTheDirectoryTree() throws Exception {
+		LocalShares.writeTree(new File(dir, "out"), 3, 2, 2, 10);
+		LocalShares.write(new File(dir, "keep.txt"), 10);
+
+		engine.purge("out/");
+
+		assertFalse(new File(dir, "out").exists());
+		assertTrue(new File(dir, "keep.txt").exists());
+	}
+
+	@Test
+	public void purgeOfTheRootKeepsTheShareDirectory() throws Exception {
+		LocalShares.writeTree(new File(dir, "out"), 2, 2, 2, 10);
+		LocalShares.write(new File(dir, "file.txt"), 10);
+
+		engine.purge("");
+
+		assertTrue(dir.isDirectory());
+		assertArrayEquals(new String[0], dir.list());
+	}
+
+	@Test
+	public void purgeOfAMissingDirectoryDoesNothing() throws Exception {
+		dir.mkdirs();
+
+		engine.purge("missing");
+
+		assertTrue(dir.isDirectory());
+	}
+
+	@Test
+	public void purgeStaleKeepsTheListedFiles() throws Exception {
+		File out = new File(dir, "out");
+		LocalShares.write(new File(out, "new.txt"), 10);
+		LocalShares.write(new File(out, "old.txt"), 10);
+		LocalShares.write(new File(out, "sub/new.txt"), 10);
+		LocalShares.write(new File(out, "sub/old.txt"), 10);
+		LocalShares.write(new File(out, "gone/old.txt"), 10);
+
+		engine.purgeStale("out", new HashSet<String>(Arrays.asList(
+				"new.txt", "sub/new.txt")));
+
+		assertTrue(new File(out, "new.txt").exists());
+		assertTrue(new File(out, "sub/new.txt").exists());
+		assertFalse(new File(out, "old.txt").exists());
+		assertFalse(new File(out, "sub/old.txt").exists());
+		assertFalse(new File(out, "gone").exists());
+	}
+}
@@ -0,0 +1,63 @@
+/*
+Copyright (c) 2011 Alex Earl, Christian Knuechel
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package com.slide.hudson.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+	@Test
+	public void delayDoublesWithEachRetry() {
+		RetryPolicy policy = new RetryPolicy(3, 100, 0);
+		assertEquals(3, policy.getRetries());
+		assertEquals(100, policy.getDelay(0));
+		assertEquals(200, policy.getDelay(1));
+		assertEquals(400, policy.getDelay(2));
+	}
+
+	@Test
+	public void delayIsCapped() {
+		RetryPolicy policy = new RetryPolicy(100, 1000, 0);
+		assertEquals(60 * 1000, policy.getDelay(10));
+		assertEquals(60 * 1000, policy.getDelay(99));
+	}
+
+	@Test
+	public void jitterStaysWithinItsPercentage() {
+		RetryPolicy policy = new RetryPolicy(1, 1000, 20);
+		for (int i = 0; i < 1000; i++) {
+			long delay = policy.getDelay(0);
+			assertTrue("delay " + delay, delay >= 800 && delay <= 1200);
+		}
+	}
+
+	@Test
+	public void negativeSettingsAreIgnored() {
+		RetryPolicy policy = new RetryPolicy(-1, -100, -5);
+		assertEquals(0, policy.getRetries());
+		assertEquals(0, policy.getDelay(0));
+	}
+}